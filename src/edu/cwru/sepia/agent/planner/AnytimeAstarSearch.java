@@ -0,0 +1,126 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.*;
+
+/**
+ * Anytime weighted A*, restarted once for each weight in a schedule. Each pass orders states by g + w * h and ends at
+ * the first goal it finds. A high weight trusts the heuristic more and finds a plan quickly, later passes with lower
+ * weights find cheaper ones. A pass prunes any state that already costs as much as the best plan found so far, so it
+ * only returns a goal that improves on it. The pruning uses g rather than f since the heuristic is not always
+ * admissible, and pruning on f could cut off the cheapest plan.
+ *
+ * Once the deadline has passed the search stops and returns the best plan it has. The first pass is the exception, it
+ * keeps going until it finds a plan, since returning nothing would leave the agent with nothing to execute. A pass with
+ * weight 1 is ordinary A*, so the schedule stops after it.
+ */
+public class AnytimeAstarSearch {
+
+    private final double[] weights;
+    private final long deadlineMillis;
+
+    private GameState incumbent;
+
+    /**
+     * @param weights The heuristic weights to search with, in the order they are tried. Usually decreasing down to 1.
+     * @param deadlineMillis How long the search may run before it returns the best plan found so far
+     */
+    public AnytimeAstarSearch(double[] weights, long deadlineMillis) {
+        this.weights = weights.length == 0 ? new double[] {1} : weights.clone();
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Searches for a plan from the given state.
+     *
+     * @param startState The state which is being planned from
+     * @return The best plan found before the deadline, or null if there is none
+     */
+    public Stack<StripsAction> search(GameState startState) {
+        long deadline = System.nanoTime() + deadlineMillis * 1000000;
+        incumbent = null;
+
+        for (double weight : weights) {
+            if (incumbent != null && System.nanoTime() >= deadline) {
+                break;
+            }
+
+            GameState goal = weightedSearch(startState, weight, deadline);
+            if (goal != null) {
+                incumbent = goal;
+                System.out.println("Weight " + weight + " found a plan costing " + goal.getCost());
+            } else {
+                System.out.println("Weight " + weight + " found no better plan");
+            }
+
+            if (weight <= 1) {
+                break;
+            }
+        }
+
+        return incumbent == null ? null : incumbent.getPreviousActions();
+    }
+
+    /**
+     * Runs one weighted A* pass.
+     *
+     * @return The first goal cheaper than the incumbent, or null if there is none or the deadline passed first
+     */
+    private GameState weightedSearch(GameState startState, final double weight, long deadline) {
+        IndexedPriorityQueue<GameState> openList = new IndexedPriorityQueue<>(new Comparator<GameState>() {
+            @Override
+            public int compare(GameState a, GameState b) {
+                int result = Double.compare(a.getCost() + weight * a.heuristic(), b.getCost() + weight * b.heuristic());
+                if (result != 0) {
+                    return result;
+                }
+                return Double.compare(a.heuristic(), b.heuristic());
+            }
+        });
+        // The cheapest cost each expanded state was reached with. With a weight above 1 a state can be expanded before
+        // its cheapest path is found, so it is re-opened if a cheaper one turns up.
+        Map<GameState, Double> closedCosts = new HashMap<>();
+
+        openList.add(startState);
+        while (!openList.isEmpty()) {
+            if (incumbent != null && System.nanoTime() >= deadline) {
+                return null;
+            }
+
+            GameState current = openList.poll();
+            if (current.isGoal()) {
+                return current;
+            }
+
+            closedCosts.put(current, current.getCost());
+
+            for (GameState child : current.children()) {
+                if (child.getCost() >= incumbentCost()) {
+                    continue;
+                }
+
+                Double closedCost = closedCosts.get(child);
+                if (closedCost != null) {
+                    if (closedCost <= child.getCost()) {
+                        continue;
+                    }
+                    closedCosts.remove(child);
+                }
+
+                if (!openList.add(child)) {
+                    openList.decreaseKey(child);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The cost of the best plan found so far, or infinity if there is none
+     */
+    private double incumbentCost() {
+        return incumbent == null ? Double.POSITIVE_INFINITY : incumbent.getCost();
+    }
+}
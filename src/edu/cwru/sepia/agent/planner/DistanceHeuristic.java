@@ -0,0 +1,58 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+
+/**
+ * The original hand tuned heuristic, and the default.
+ *
+ * The heuristic favors states where there are more peasants by dividing the state by 2. The heuristic also favors states where the peasant is harvesting gold by dividing the number of gold trips left from the heuristic.
+ * Once the heuristic checks for whether the peasant is carrying or not, it calculates the chebychev distance from the current position to the next position and returns the minimum distance
+ */
+public class DistanceHeuristic implements Heuristic {
+
+    @Override
+    public double estimate(GameState state) {
+        DistanceOracle distanceOracle = state.getDistanceOracle();
+        int[] peasants = state.getPackedPeasants();
+
+        double heuristic = 0;
+        int goldNeeded = state.getRequiredGold() - state.getCurrentGold();
+        int woodNeeded = state.getRequiredWood() - state.getCurrentWood();
+        int tripsGold = goldNeeded/100;
+        int tripsWood = woodNeeded/100;
+        int currentPeasants = peasants.length;
+
+        for (int peasant : peasants) {
+            if (Peasant.getResourceType(peasant) == ResourceNode.Type.GOLD_MINE) {
+                int distanceToTownhall = distanceOracle.townhallDistance(Peasant.getX(peasant), Peasant.getY(peasant));
+                heuristic += 2 * (distanceToTownhall * (tripsGold - 1)) + distanceToTownhall;
+
+                // carrying gold is prioritized
+                if (state.getCurrentGold() < 400) {
+                    heuristic /= 2;
+                }
+            } else {
+                int distanceToResource = distanceOracle.distance(state.getGoldDistances(), Peasant.getX(peasant), Peasant.getY(peasant));
+                heuristic += 2 * distanceToResource * tripsGold;
+            }
+        }
+
+        for (int peasant : peasants) {
+            if (Peasant.getResourceType(peasant) == ResourceNode.Type.TREE) {
+                int distanceToTownhall = distanceOracle.townhallDistance(Peasant.getX(peasant), Peasant.getY(peasant));
+                heuristic += 2 * (distanceToTownhall * (tripsWood - 1)) + distanceToTownhall;
+
+                if (state.getCurrentGold() < 400) {
+                    heuristic *= 2;
+                }
+            } else {
+                int distanceToResource = distanceOracle.distance(state.getTreeDistances(), Peasant.getX(peasant), Peasant.getY(peasant));
+                heuristic += 2 * distanceToResource * tripsWood;
+            }
+        }
+
+        heuristic /= currentPeasants;
+
+        return heuristic;
+    }
+}
@@ -0,0 +1,278 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Distances on the map that the search needs over and over, precomputed once per map. Like the ResourceTable it is
+ * built from the initial state and shared by every GameState in the search.
+ *
+ * For every tile it holds the distance to the townhall and the tile next to the townhall a peasant there would walk
+ * to. The distance from every tile to the nearest gold mine or tree depends on which resources have run out, so those
+ * tables are built the first time a set of depleted resources is seen and then shared by every state with the same
+ * set. A state keeps using its parent's tables until one of its resources runs out, see GameState.
+ *
+ * Distances are walking distances around the resources and the townhall (see PathCache): the distance to a resource or
+ * the townhall is the length of the path to the nearest tile next to it, plus the final step. The tile a peasant walks
+ * to is that nearest tile, so it is always one a peasant can stand on and the move to it costs what the distance says.
+ * A tile that cannot reach the target at all falls back to the Chebyshev distance.
+ *
+ * All tables are flat arrays indexed by y * xExtent + x. Every table is filled in before it is published and never
+ * changed after, so the oracle can be used from several search threads at once.
+ */
+public class DistanceOracle {
+
+    private final int xExtent;
+    private final int yExtent;
+    private final ResourceTable resourceTable;
+    private final Position townhall;
+    private final PathCache pathCache;
+
+    private final int[] townhallDistances;
+    private final Position[] townhallApproaches;
+
+    // Nearest gold and tree distances, keyed by the set of depleted resources of that type
+    private final Map<BitSet, int[]> goldDistances;
+    private final Map<BitSet, int[]> treeDistances;
+
+    // The tile next to each resource that a peasant on a given tile walks to, filled in as it is asked for
+    private final Map<Integer, Position> resourceApproaches;
+
+    /**
+     * @param xExtent The width of the map
+     * @param yExtent The height of the map
+     * @param resourceTable The map's resources
+     * @param townhall The position of the townhall
+     */
+    public DistanceOracle(int xExtent, int yExtent, ResourceTable resourceTable, Position townhall) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.resourceTable = resourceTable;
+        this.townhall = townhall;
+
+        List<Position> obstacles = new ArrayList<>();
+        for (int i = 0; i < resourceTable.size(); i++) {
+            obstacles.add(resourceTable.getPosition(i));
+        }
+        obstacles.add(townhall);
+        this.pathCache = new PathCache(xExtent, yExtent, obstacles);
+
+        int[] pathLengths = pathCache.distancesFrom(townhall.getAdjacentPositions());
+        this.townhallDistances = new int[xExtent * yExtent];
+        this.townhallApproaches = new Position[xExtent * yExtent];
+        for (int y = 0; y < yExtent; y++) {
+            for (int x = 0; x < xExtent; x++) {
+                Position tile = new Position(x, y);
+                int pathLength = pathLengths[index(x, y)];
+                townhallDistances[index(x, y)] = pathLength == PathCache.UNREACHABLE ? tile.chebyshevDistance(townhall) : pathLength + 1;
+                townhallApproaches[index(x, y)] = closestAdjacentPosition(tile, townhall);
+            }
+        }
+
+        this.goldDistances = new ConcurrentHashMap<>();
+        this.treeDistances = new ConcurrentHashMap<>();
+        this.resourceApproaches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return The walking distance from the tile to the townhall
+     */
+    public int townhallDistance(int x, int y) {
+        if (!inBounds(x, y)) {
+            return new Position(x, y).chebyshevDistance(townhall);
+        }
+        return townhallDistances[index(x, y)];
+    }
+
+    /**
+     * @return The tile next to the townhall that is closest to the given tile
+     */
+    public Position townhallApproach(Position start) {
+        if (!inBounds(start.x, start.y)) {
+            return closestAdjacentPosition(start, townhall);
+        }
+        return townhallApproaches[index(start.x, start.y)];
+    }
+
+    /**
+     * @param resource The index of the resource in the resource table
+     * @return The tile next to the resource that is closest to the given tile
+     */
+    public Position resourceApproach(Position start, int resource) {
+        if (!inBounds(start.x, start.y)) {
+            return closestAdjacentPosition(start, resourceTable.getPosition(resource));
+        }
+
+        Integer key = resource * xExtent * yExtent + index(start.x, start.y);
+        Position approach = resourceApproaches.get(key);
+        if (approach == null) {
+            approach = closestAdjacentPosition(start, resourceTable.getPosition(resource));
+            resourceApproaches.put(key, approach);
+        }
+        return approach;
+    }
+
+    /**
+     * @return The number of turns a compound move between the two tiles takes, see PathCache
+     */
+    public int moveCost(Position from, Position to) {
+        return pathCache.pathLength(from, to);
+    }
+
+    /**
+     * @return true if the tile is on the map and not taken up by a resource or the townhall
+     */
+    public boolean isWalkable(Position position) {
+        return position.inBounds(xExtent, yExtent) && !pathCache.isBlocked(position);
+    }
+
+    /**
+     * Finds the table of distances to the nearest gold mine or tree that has not run out.
+     *
+     * @param gold True for gold mines, false for trees
+     * @param resourceHarvests The number of harvests left at each resource
+     * @return The distance from every tile to the nearest resource of the type, indexed by y * xExtent + x
+     */
+    public int[] nearestResourceDistances(boolean gold, short[] resourceHarvests) {
+        int from = gold ? 0 : resourceTable.getGoldCount();
+        int to = gold ? resourceTable.getGoldCount() : resourceTable.size();
+
+        BitSet depleted = new BitSet(to - from);
+        for (int i = from; i < to; i++) {
+            if (resourceHarvests[i] == 0) {
+                depleted.set(i - from);
+            }
+        }
+
+        Map<BitSet, int[]> tables = gold ? goldDistances : treeDistances;
+        int[] distances = tables.get(depleted);
+        if (distances == null) {
+            distances = buildNearestResourceDistances(from, to, depleted);
+            tables.put(depleted, distances);
+        }
+        return distances;
+    }
+
+    /**
+     * Reads a distance out of one of the tables returned by nearestResourceDistances. A tile off the map is treated as
+     * infinitely far away.
+     */
+    public int distance(int[] distances, int x, int y) {
+        if (!inBounds(x, y)) {
+            return Integer.MAX_VALUE;
+        }
+        return distances[index(x, y)];
+    }
+
+    /**
+     * Fills in the distance from every tile to the nearest resource in [from, to) that is not in the depleted set. A
+     * tile that cannot walk to any of them gets the Chebyshev distance to the nearest one instead. If every resource of
+     * the type has run out, the distance is to a position at Integer.MAX_VALUE, which is what the search has always used
+     * for a resource that is not there.
+     */
+    private int[] buildNearestResourceDistances(int from, int to, BitSet depleted) {
+        List<Position> approaches = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (!depleted.get(i - from)) {
+                approaches.addAll(resourceTable.getPosition(i).getAdjacentPositions());
+            }
+        }
+        int[] pathLengths = pathCache.distancesFrom(approaches);
+
+        int[] distances = new int[xExtent * yExtent];
+        for (int y = 0; y < yExtent; y++) {
+            for (int x = 0; x < xExtent; x++) {
+                int pathLength = pathLengths[index(x, y)];
+                if (pathLength != PathCache.UNREACHABLE) {
+                    distances[index(x, y)] = pathLength + 1;
+                    continue;
+                }
+
+                int closest = Integer.MAX_VALUE - Math.min(x, y);
+                for (int i = from; i < to; i++) {
+                    if (!depleted.get(i - from)) {
+                        Position position = resourceTable.getPosition(i);
+                        closest = Math.min(closest, Math.max(Math.abs(x - position.x), Math.abs(y - position.y)));
+                    }
+                }
+                distances[index(x, y)] = closest;
+            }
+        }
+        return distances;
+    }
+
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < xExtent && y < yExtent;
+    }
+
+    private int index(int x, int y) {
+        return y * xExtent + x;
+    }
+
+    /**
+     * Finds the tile next to end that a peasant on start would walk to, the one with the shortest path from start.
+     * Tiles that cannot be walked on are never picked while there is one that can. If start cannot reach any of them,
+     * for example because it is off the map, the closest by Chebyshev distance is picked instead.
+     *
+     * The path lengths are read from the rows of the tiles next to end, so every start shares the same few rows.
+     *
+     * @param start The start position
+     * @param end   The end position
+     * @return The closest adjacent position to start
+     */
+    private Position closestAdjacentPosition(Position start, Position end) {
+        Position closestAdjacentPosition = null;
+        int closestPathLength = Integer.MAX_VALUE;
+        int closestDistance = Integer.MAX_VALUE;
+
+        for (Position adjacentPosition : end.getAdjacentPositions()) {
+            if (!isWalkable(adjacentPosition)) {
+                continue;
+            }
+            int pathLength = pathLengthFrom(adjacentPosition, start);
+            if (pathLength == PathCache.UNREACHABLE) {
+                pathLength = Integer.MAX_VALUE;
+            }
+            int distance = start.chebyshevDistance(adjacentPosition);
+            if (pathLength < closestPathLength || pathLength == closestPathLength && distance < closestDistance) {
+                closestAdjacentPosition = adjacentPosition;
+                closestPathLength = pathLength;
+                closestDistance = distance;
+            }
+        }
+
+        if (closestAdjacentPosition == null) {
+            // nothing around end can be walked on, so any tile is as good as another
+            for (Position adjacentPosition : end.getAdjacentPositions()) {
+                int distance = start.chebyshevDistance(adjacentPosition);
+                if (distance < closestDistance) {
+                    closestAdjacentPosition = adjacentPosition;
+                    closestDistance = distance;
+                }
+            }
+        }
+        return closestAdjacentPosition;
+    }
+
+    /**
+     * @return The length of the shortest path from the walkable tile to start, or UNREACHABLE. A start that cannot be
+     * walked on, such as a resource, is reached through the tiles next to it.
+     */
+    private int pathLengthFrom(Position tile, Position start) {
+        if (!start.inBounds(xExtent, yExtent) || !pathCache.isBlocked(start)) {
+            return pathCache.shortestPathLength(tile, start);
+        }
+
+        int shortest = PathCache.UNREACHABLE;
+        for (Position next : start.getAdjacentPositions()) {
+            int pathLength = pathCache.shortestPathLength(tile, next);
+            if (pathLength != PathCache.UNREACHABLE && (shortest == PathCache.UNREACHABLE || pathLength + 1 < shortest)) {
+                shortest = pathLength + 1;
+            }
+        }
+        return shortest;
+    }
+}
@@ -7,6 +7,7 @@ import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
 
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * This class is used to represent the state of the game after applying one of the avaiable actions. It will also
@@ -38,13 +39,50 @@ public class GameState implements Comparable<GameState> {
     private int currentGold;
     private int currentWood;
 
-    private List<ResourceLocation> goldLocations;
-    private List<ResourceLocation> treeLocations;
+    // The resources are stored as the number of harvests left at each index of the shared resource table. Children
+    // share this array with their parent unless they harvest, so it must never be modified after construction.
+    private ResourceTable resourceTable;
+    private short[] resourceHarvests;
 
     private Position townhall;
-    private Map<Integer, Peasant> peasants;
 
-    private Stack<StripsAction> previousActions;
+    // Precomputed distances for the map, shared by every state. goldDistances and treeDistances are the oracle's tables
+    // for this state's depleted resources, children keep using them until one of their resources runs out.
+    private DistanceOracle distanceOracle;
+    private int[] goldDistances;
+    private int[] treeDistances;
+
+    // Peasant i + 1 is packed into peasants[i], see Peasant.pack. This is also never modified after construction.
+    private int[] peasants;
+
+    // The state this one was generated from and the action that generated it. Both are null for the initial state.
+    // The plan is rebuilt from these once the goal is found instead of copying it into every state.
+    private GameState parent;
+    private StripsAction action;
+
+    // A* values. The heuristic is computed the first time it is needed and then cached so that comparing states is
+    // cheap. States that only exist between the actions of a ParallelAction never need it.
+    private double cost;
+    private boolean hasHeuristic;
+    private double heuristicCost;
+    private double totalCost;
+
+    // The heuristic used to estimate the remaining cost, shared by every state in the search.
+    private Heuristic heuristicFunction;
+
+    // Zobrist hash of the peasants, resources and resource totals. Actions update this incrementally.
+    private long zobristHash;
+
+    // When true peasants are treated as interchangeable when hashing and comparing states, so two states that only
+    // differ by which peasant is where count as the same state. The plan in each state still uses concrete ids.
+    private boolean canonicalPeasants;
+    private int[] sortedPeasants;
+
+    // When a state has at least this many joint actions its children are built on several threads. 0 turns this off.
+    private int parallelChildThreshold;
+
+    // When true a peasant next to the townhall may also do a whole round trip to a resource as one HarvestCycleAction
+    private boolean harvestCycles;
 
     /**
      * Construct a GameState from a stateview object. This is used to construct the initial search node. All other
@@ -61,7 +99,18 @@ public class GameState implements Comparable<GameState> {
     }
 
     public GameState(State.StateView state, int playernum, int requiredGold, int requiredWood, int currentGold, int currentWood, boolean buildPeasants) {
+        this(state, playernum, requiredGold, requiredWood, currentGold, currentWood, buildPeasants, false);
+    }
+
+    /**
+     * Construct the initial search node, optionally with canonical peasants. Every state generated from it inherits the
+     * setting.
+     *
+     * @param canonicalPeasants True if states that only differ by a permutation of the peasants should be equal
+     */
+    public GameState(State.StateView state, int playernum, int requiredGold, int requiredWood, int currentGold, int currentWood, boolean buildPeasants, boolean canonicalPeasants) {
         this.playerNum = playernum;
+        this.canonicalPeasants = canonicalPeasants;
         this.xExtent = state.getXExtent();
         this.yExtent = state.getYExtent();
         this.buildPeasants = buildPeasants;
@@ -69,21 +118,10 @@ public class GameState implements Comparable<GameState> {
         this.requiredWood = requiredWood;
         this.currentGold = currentGold;
         this.currentWood = currentWood;
-        goldLocations = new ArrayList<>();
-        treeLocations = new ArrayList<>();
-        peasants = new HashMap<>();
-
-        // add resource locations
-        for (ResourceNode.ResourceView resource : state.getAllResourceNodes()) {
-            Position position = new Position(resource.getXPosition(), resource.getYPosition());
-            if (resource.getType().equals(ResourceNode.Type.GOLD_MINE)) {
-                goldLocations.add(new ResourceLocation(position, ResourceNode.Type.GOLD_MINE, resource.getAmountRemaining()));
-            } else if (resource.getType().equals(ResourceNode.Type.TREE)) {
-                treeLocations.add(new ResourceLocation(position, ResourceNode.Type.TREE, resource.getAmountRemaining()));
-            }
-        }
+        this.resourceTable = new ResourceTable(state);
+        this.resourceHarvests = resourceTable.getInitialHarvests();
 
-        int peasantNumber = 1;
+        List<Integer> packedPeasants = new ArrayList<>();
 
         // add existing units
         for (Unit.UnitView unit : state.getUnits(playernum)) {
@@ -92,36 +130,49 @@ public class GameState implements Comparable<GameState> {
             if (unitType.equals("townhall")) {
                 townhall = new Position(unit.getXPosition(), unit.getYPosition());
             } else if (unitType.equals("peasant")) {
+                ResourceNode.Type resourceType = null;
                 if (unit.getCargoAmount() > 0) {
-
-                    ResourceNode.Type resourceType;
                     if (unit.getCargoType().equals(ResourceType.GOLD)) {
                         resourceType = ResourceNode.Type.GOLD_MINE;
                     } else {
                         resourceType = ResourceNode.Type.TREE;
                     }
-                    peasants.put(peasantNumber, new Peasant(peasantNumber, new Position(unit.getXPosition(), unit.getYPosition()), resourceType));
-
-                } else {
-                    peasants.put(peasantNumber, new Peasant(peasantNumber, new Position(unit.getXPosition(), unit.getYPosition())));
                 }
-                peasantNumber += 1;
+                packedPeasants.add(Peasant.pack(unit.getXPosition(), unit.getYPosition(), resourceType));
             }
         }
 
-        this.previousActions = new Stack<>();
+        this.peasants = new int[packedPeasants.size()];
+        for (int i = 0; i < peasants.length; i++) {
+            peasants[i] = packedPeasants.get(i);
+        }
+
+        this.distanceOracle = new DistanceOracle(xExtent, yExtent, resourceTable, townhall);
+        this.goldDistances = distanceOracle.nearestResourceDistances(true, resourceHarvests);
+        this.treeDistances = distanceOracle.nearestResourceDistances(false, resourceHarvests);
+
+        this.parent = null;
+        this.action = null;
+        this.zobristHash = computeZobristHash();
+
+        this.cost = 0;
+        this.heuristicFunction = new DistanceHeuristic();
     }
 
     /**
-     * Construct a GameState from a previous GameState
-     * @param state the previous GameState
-     * @param goldLocations the locations of gold mines
-     * @param treeLocations the locations of trees
-     * @param peasants the peasants
+     * Construct a GameState from a previous GameState. The arrays are used as given, so a caller that changes them must
+     * pass in a copy.
+     *
+     * @param state the previous GameState, this becomes the new state's parent
+     * @param resourceHarvests the number of harvests left at each resource in the resource table
+     * @param peasants the packed peasants, see Peasant.pack
      * @param currentGold the current amount of gold a player has
      * @param currentWood the current amount of wood a player has
+     * @param cost the total duration of the actions taken to reach this state
+     * @param zobristHash the Zobrist hash of the new state, see Zobrist
+     * @param action the action that was applied to the previous state to reach this state
      */
-    public GameState(GameState state , List<ResourceLocation> goldLocations, List<ResourceLocation> treeLocations, Map<Integer, Peasant> peasants, int currentGold, int currentWood, Stack<StripsAction> actions) {
+    public GameState(GameState state, short[] resourceHarvests, int[] peasants, int currentGold, int currentWood, double cost, long zobristHash, StripsAction action) {
         this.playerNum = state.getPlayerNum();
         this.xExtent = state.getxExtent();
         this.yExtent = state.getyExtent();
@@ -129,14 +180,70 @@ public class GameState implements Comparable<GameState> {
         this.requiredGold = state.getRequiredGold();
         this.requiredWood = state.getRequiredWood();
         this.townhall = state.getTownhall();
+        this.resourceTable = state.getResourceTable();
+        this.canonicalPeasants = state.isCanonicalPeasants();
+        this.parallelChildThreshold = state.getParallelChildThreshold();
+        this.harvestCycles = state.isHarvestCycles();
 
-        this.goldLocations = goldLocations;
-        this.treeLocations = treeLocations;
+        this.resourceHarvests = resourceHarvests;
         this.peasants = peasants;
         this.currentGold = currentGold;
         this.currentWood = currentWood;
 
-        this.previousActions = actions;
+        this.distanceOracle = state.distanceOracle;
+        if (resourceHarvests == state.resourceHarvests || !depletesResource(state.resourceHarvests, resourceHarvests)) {
+            this.goldDistances = state.goldDistances;
+            this.treeDistances = state.treeDistances;
+        } else {
+            this.goldDistances = distanceOracle.nearestResourceDistances(true, resourceHarvests);
+            this.treeDistances = distanceOracle.nearestResourceDistances(false, resourceHarvests);
+        }
+
+        this.parent = state;
+        this.action = action;
+        this.zobristHash = zobristHash;
+
+        this.cost = cost;
+        this.heuristicFunction = state.getHeuristicFunction();
+    }
+
+    /**
+     * Construct a new initial search node at the same point as an existing state but with a different goal. The new
+     * state has no parent and no cost, so a plan found from it starts at this point. This is used to plan towards the
+     * goal one segment at a time.
+     *
+     * @param state The state to start from
+     * @param requiredGold The goal amount of gold
+     * @param requiredWood The goal amount of wood
+     */
+    public GameState(GameState state, int requiredGold, int requiredWood) {
+        this.playerNum = state.getPlayerNum();
+        this.xExtent = state.getxExtent();
+        this.yExtent = state.getyExtent();
+        this.buildPeasants = state.isBuildPeasants();
+        this.requiredGold = requiredGold;
+        this.requiredWood = requiredWood;
+        this.townhall = state.getTownhall();
+        this.resourceTable = state.getResourceTable();
+        this.canonicalPeasants = state.isCanonicalPeasants();
+        this.parallelChildThreshold = state.getParallelChildThreshold();
+        this.harvestCycles = state.isHarvestCycles();
+
+        this.resourceHarvests = state.getResourceHarvests();
+        this.peasants = state.getPackedPeasants();
+        this.currentGold = state.getCurrentGold();
+        this.currentWood = state.getCurrentWood();
+
+        this.distanceOracle = state.distanceOracle;
+        this.goldDistances = state.goldDistances;
+        this.treeDistances = state.treeDistances;
+
+        this.parent = null;
+        this.action = null;
+        this.zobristHash = state.getZobristHash();
+
+        this.cost = 0;
+        this.heuristicFunction = state.getHeuristicFunction();
     }
 
     /**
@@ -154,10 +261,114 @@ public class GameState implements Comparable<GameState> {
      * The branching factor of this search graph are much higher than the planning. Generate all of the possible
      * successor states and their associated actions in this method.
      *
+     * This collects children() into a list. Searches that look at one child at a time should use children() instead.
+     *
      * @return A list of the possible successor states and their associated actions
      */
     public List<GameState> generateChildren() {
         List<GameState> children = new ArrayList<>();
+        for (GameState child : children()) {
+            children.add(child);
+        }
+        return children;
+    }
+
+    /**
+     * Lazily generates the successor states. Each child is the result of a ParallelAction made of one action per unit
+     * (see getUnitActions). Joint actions are enumerated depth first, one unit at a time, and each unit's action is
+     * checked against the state left by the units before it. A prefix that fails is never extended, and the state for
+     * each prefix is built once and shared by every joint action that starts with it.
+     *
+     * If there are at least getParallelChildThreshold() joint actions, the children are instead all built up front on
+     * the common fork/join pool, see generateChildrenInParallel.
+     *
+     * @return The successor states, generated as they are iterated over
+     */
+    public Iterable<GameState> children() {
+        final List<List<StripsAction>> unitActions = getUnitActions();
+        if (parallelChildThreshold > 0 && countJointActions(unitActions) >= parallelChildThreshold) {
+            return generateChildrenInParallel(unitActions);
+        }
+
+        return new Iterable<GameState>() {
+            @Override
+            public Iterator<GameState> iterator() {
+                return new ChildIterator(unitActions);
+            }
+        };
+    }
+
+    /**
+     * Builds every child on the common fork/join pool. Each joint action is checked, applied and has its heuristic
+     * computed on whichever thread picks it up. The children come back in the same order children() would give them.
+     *
+     * The sub-actions are shared between joint actions, so this relies on apply not changing them in ways that depend
+     * on the state. HarvestAction picks its resource when it is created for this reason. DepositAction and
+     * BuildPeasantAction do record values in apply, but they only depend on this state, so every thread writes the same
+     * value.
+     *
+     * @param unitActions One list of candidate actions per unit
+     * @return The children
+     */
+    private List<GameState> generateChildrenInParallel(List<List<StripsAction>> unitActions) {
+        return cartesianProduct(unitActions).parallelStream()
+                .map(jointAction -> {
+                    GameState child = new ParallelAction(jointAction).tryApply(this);
+                    if (child != null) {
+                        child.heuristic();
+                    }
+                    return child;
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param unitActions One list of candidate actions per unit
+     * @return The number of joint actions, capped at Integer.MAX_VALUE
+     */
+    private static int countJointActions(List<List<StripsAction>> unitActions) {
+        long count = unitActions.isEmpty() ? 0 : 1;
+        for (List<StripsAction> actions : unitActions) {
+            count = Math.min(Integer.MAX_VALUE, count * actions.size());
+        }
+        return (int) count;
+    }
+
+    /**
+     * Finds the cartesian product of each units's actions, with the last unit's action changing fastest
+     *
+     * @param actionsList A list of each unit's actions
+     * @return The cartesian product of actions
+     */
+    private static List<List<StripsAction>> cartesianProduct(List<List<StripsAction>> actionsList) {
+        List<List<StripsAction>> combinations = new ArrayList<>();
+        if (actionsList.isEmpty()) {
+            return combinations;
+        }
+
+        combinations.add(new ArrayList<StripsAction>());
+        for (List<StripsAction> actions : actionsList) {
+            List<List<StripsAction>> extraColumnCombinations = new ArrayList<>();
+            for (List<StripsAction> productList : combinations) {
+                for (StripsAction action : actions) {
+                    List<StripsAction> newProductList = new ArrayList<>(productList);
+                    newProductList.add(action);
+                    extraColumnCombinations.add(newProductList);
+                }
+            }
+            combinations = extraColumnCombinations;
+        }
+        return combinations;
+    }
+
+    /**
+     * Finds the actions each unit could take from this state. The BuildPeasantAction comes first, if it applies, followed
+     * by each peasant's actions in id order. Units with no actions are left out.
+     *
+     * @return One non-empty list of candidate actions per unit that can act
+     */
+    private List<List<StripsAction>> getUnitActions() {
         List<List<StripsAction>> allPeasantActions = new ArrayList<>();
 
         BuildPeasantAction buildPeasantAction = new BuildPeasantAction();
@@ -165,135 +376,187 @@ public class GameState implements Comparable<GameState> {
             allPeasantActions.add(Arrays.asList(buildPeasantAction));
         }
 
-        for (Peasant peasant : peasants.values()) {
-            List<StripsAction> peasantActions = new ArrayList<>();
-
-            HarvestAction harvestAction = new HarvestAction(peasant.getID());
-            if (harvestAction.preconditionsMet(this)) {
-                peasantActions.add(harvestAction);
+        for (int i = 0; i < peasants.length; i++) {
+            // Add all of this peasant's actions to the list of all peasant's actions. A peasant with nothing to do
+            // just waits while the others act.
+            List<StripsAction> peasantActions = getPeasantActions(i + 1);
+            if (!peasantActions.isEmpty()) {
+                allPeasantActions.add(peasantActions);
             }
+        }
 
+        return allPeasantActions;
+    }
 
-            if (peasant.isCarrying()) {
-                // Move to townhall
-                MoveAction moveAction = new MoveAction(peasant.getID(), peasant.getPosition(), getClosestAdjacentPosition(peasant.getPosition(), townhall), xExtent, yExtent);
-                if (moveAction.preconditionsMet(this) && !peasant.getPosition().isAdjacent(townhall)) {
-                    peasantActions.add(moveAction);
-                }
+    /**
+     * Finds the actions one peasant could take from this state, ignoring what the other peasants do.
+     *
+     * @param peasantID The id of the peasant
+     * @return The peasant's candidate actions, which may be empty
+     */
+    public List<StripsAction> getPeasantActions(int peasantID) {
+        Peasant peasant = Peasant.unpack(peasantID, peasants[peasantID - 1]);
+        List<StripsAction> peasantActions = new ArrayList<>();
+
+        HarvestAction harvestAction = new HarvestAction(peasant.getID(), this);
+        if (harvestAction.preconditionsMet(this)) {
+            peasantActions.add(harvestAction);
+        }
 
-                // Deposit resources
-                DepositAction depositAction = new DepositAction(peasant.getID());
-                if (depositAction.preconditionsMet(this)) {
-                    peasantActions.add(depositAction);
+
+        if (peasant.isCarrying()) {
+            // Move to townhall
+            Position target = distanceOracle.townhallApproach(peasant.getPosition());
+            MoveAction moveAction = new MoveAction(peasant.getID(), peasant.getPosition(), target, xExtent, yExtent, distanceOracle.moveCost(peasant.getPosition(), target));
+            if (moveAction.preconditionsMet(this) && !peasant.getPosition().isAdjacent(townhall)) {
+                peasantActions.add(moveAction);
+            }
+
+            // Deposit resources
+            DepositAction depositAction = new DepositAction(peasant.getID());
+            if (depositAction.preconditionsMet(this)) {
+                peasantActions.add(depositAction);
+            }
+        } else if (!peasant.isCarrying() && peasant.getPosition().isAdjacent(townhall)){
+            // Move to all resource locations
+            for (int resource = 0; resource < resourceTable.size(); resource++) {
+                if (resourceHarvests[resource] == 0) {
+                    continue;
                 }
-            } else if (!peasant.isCarrying() && peasant.getPosition().isAdjacent(townhall)){
-                // Move to all resource locations
-                if (currentGold < requiredGold) {
-                    for (ResourceLocation resource : goldLocations) {
-                        MoveAction moveAction = new MoveAction(peasant.getID(), peasant.getPosition(), getClosestAdjacentPosition(peasant.getPosition(), resource.getPosition()), xExtent, yExtent);
-                        if (moveAction.preconditionsMet(this)) {
-                            peasantActions.add(moveAction);
-                        }
-                    }
+                if (resourceTable.isGold(resource) ? currentGold >= requiredGold : currentWood >= requiredWood) {
+                    continue;
                 }
 
-                if (currentWood < requiredWood) {
-                    for (ResourceLocation resource : treeLocations) {
-                        MoveAction moveAction = new MoveAction(peasant.getID(), peasant.getPosition(), getClosestAdjacentPosition(peasant.getPosition(), resource.getPosition()), xExtent, yExtent);
-                        if (moveAction.preconditionsMet(this)) {
-                            peasantActions.add(moveAction);
-                        }
+                // the round trip replaces the move to the resource, offering both only adds paths to the same states
+                if (harvestCycles) {
+                    HarvestCycleAction harvestCycleAction = new HarvestCycleAction(peasant.getID(), resource, this);
+                    if (harvestCycleAction.preconditionsMet(this)) {
+                        peasantActions.add(harvestCycleAction);
                     }
+                    continue;
+                }
+
+                Position target = distanceOracle.resourceApproach(peasant.getPosition(), resource);
+                MoveAction moveAction = new MoveAction(peasant.getID(), peasant.getPosition(), target, xExtent, yExtent, distanceOracle.moveCost(peasant.getPosition(), target));
+                if (moveAction.preconditionsMet(this)) {
+                    peasantActions.add(moveAction);
                 }
             }
+        }
 
-            // Add all of this peasant's actions to the list of all peasant's actions.
-            allPeasantActions.add(peasantActions);
+        return peasantActions;
+    }
 
+    /**
+     * Walks the joint actions like an odometer, with the last unit's action changing fastest. states[d] is the state
+     * after the chosen actions of the first d units have been applied, so moving to the next action of unit d only
+     * rebuilds states[d + 1].
+     */
+    private class ChildIterator implements Iterator<GameState> {
+
+        private final List<List<StripsAction>> unitActions;
+        private final int[] choices;
+        private final GameState[] states;
+        private int depth;
+        private GameState next;
+
+        ChildIterator(List<List<StripsAction>> unitActions) {
+            this.unitActions = unitActions;
+            this.choices = new int[unitActions.size()];
+            this.states = new GameState[unitActions.size() + 1];
+            this.states[0] = GameState.this;
+            this.depth = unitActions.isEmpty() ? -1 : 0;
+            Arrays.fill(choices, -1);
+
+            advance();
+        }
 
+        @Override
+        public boolean hasNext() {
+            return next != null;
         }
 
-        List<List<StripsAction>> combinedActions = cartesianProduct(allPeasantActions);
-        for (List<StripsAction> combinedAction : combinedActions) {
-            ParallelAction parallelAction = new ParallelAction(combinedAction);
-            if (parallelAction.preconditionsMet(this)) {
-                children.add(parallelAction.apply(this));
-                if(Objects.equals(parallelAction.getActions().toString(), "[HarvestAction{peasantID=1, resourceDirection=NORTHEAST}, MoveAction{peasantID=2, currentPosition=(7, 10), targetPosition=(16, 10)}, DepositAction{peasantID=3, townhallDirection=SOUTHWEST}]")){
-                    System.out.println("Check here");
-                }
+        @Override
+        public GameState next() {
+            if (next == null) {
+                throw new NoSuchElementException();
             }
+            GameState child = next;
+            advance();
+            return child;
         }
 
-        return children;
+        /**
+         * Finds the next joint action whose actions all meet their preconditions and builds its child.
+         */
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                List<StripsAction> actions = unitActions.get(depth);
+                choices[depth] += 1;
+                if (choices[depth] >= actions.size()) {
+                    // this unit is out of actions, go back to the previous unit
+                    choices[depth] = -1;
+                    depth -= 1;
+                    continue;
+                }
+
+                StripsAction action = actions.get(choices[depth]);
+                if (!action.preconditionsMet(states[depth])) {
+                    continue;
+                }
+                states[depth + 1] = action.apply(states[depth]);
+
+                if (depth + 1 < choices.length) {
+                    depth += 1;
+                    continue;
+                }
+
+                List<StripsAction> jointAction = new ArrayList<>(choices.length);
+                for (int i = 0; i < choices.length; i++) {
+                    jointAction.add(unitActions.get(i).get(choices[i]));
+                }
+                next = new ParallelAction(jointAction).applyResult(GameState.this, states[choices.length]);
+                return;
+            }
+        }
     }
 
     /**
      * Write your heuristic function here. Remember this must be admissible for the properties of A* to hold. If you
      * can come up with an easy way of computing a consistent heuristic that is even better, but not strictly necessary.
      *
-     * The heuristic favors states where there are more peasants by dividing the state by 2. The heuristic also favors states where the peasant is harvesting gold by dividing the number of gold trips left from the heuristic.
-     * Once the heuristic checks for whether the peasant is carrying or not, it calculates the chebychev distance from the current position to the next position and returns the minimum distance
+     * The estimate comes from the state's Heuristic, see setHeuristicFunction. It is computed the first time it is
+     * needed and then cached.
      *
      * @return The value estimated remaining cost to reach a goal state from this state.
      */
     public double heuristic() {
-        double heuristic = 0;
-        int goldNeeded = requiredGold - currentGold;
-        int woodNeeded = requiredWood - currentWood;
-        int tripsGold = goldNeeded/100;
-        int tripsWood = woodNeeded/100;
-        int currentPeasants = peasants.values().size();
-
-        for (Peasant peasant : peasants.values()) {
-            if (peasant.isCarrying() && peasant.getResourceType().equals(ResourceNode.Type.GOLD_MINE)) {
-                int distanceToTownhall= peasant.getPosition().chebyshevDistance(townhall);
-                heuristic += 2 * (distanceToTownhall * (tripsGold - 1)) + distanceToTownhall;
-
-                // carrying gold is prioritized
-                if (currentGold < 400) {
-                    heuristic /= 2;
-                }
-            } else {
-                int distanceToResource = peasant.getPosition().chebyshevDistance(findClosestResourcePosition(peasant.getPosition(), ResourceNode.Type.GOLD_MINE));
-                heuristic += 2 * distanceToResource * tripsGold;
-            }
-        }
-
-        for (Peasant peasant : peasants.values()) {
-            if (peasant.isCarrying() && peasant.getResourceType().equals(ResourceNode.Type.TREE)) {
-                int distanceToTownhall= peasant.getPosition().chebyshevDistance(townhall);
-                heuristic += 2 * (distanceToTownhall * (tripsWood - 1)) + distanceToTownhall;
-
-                if (currentGold < 400) {
-                    heuristic *= 2;
-                }
-            } else {
-                int distanceToResource = peasant.getPosition().chebyshevDistance(findClosestResourcePosition(peasant.getPosition(), ResourceNode.Type.TREE));
-                heuristic += 2 * distanceToResource * tripsWood;
-            }
+        if (!hasHeuristic) {
+            heuristicCost = heuristicFunction.estimate(this);
+            totalCost = cost + heuristicCost;
+            hasHeuristic = true;
         }
-
-        heuristic /= currentPeasants;
-
-        return heuristic;
+        return heuristicCost;
     }
 
     /**
      * This is necessary to use your state in the Java priority queue. See the official priority queue and Comparable
      * interface documentation to learn how this function should work.
      *
+     * States are ordered by f = g + h. Ties are broken in favor of the state with the smaller heuristic, as it is
+     * likely closer to the goal.
+     *
      * @param o The other game state to compare
      * @return 1 if this state costs more than the other, 0 if equal, -1 otherwise
      */
     @Override
     public int compareTo(GameState o) {
-        if (this.heuristic() > o.heuristic()) {
-            return 1;
-        } else if (this.heuristic() < o.heuristic()) {
-            return -1;
-        } else {
-            return 0;
+        int result = Double.compare(this.getTotalCost(), o.getTotalCost());
+        if (result != 0) {
+            return result;
         }
+        return Double.compare(this.heuristic(), o.heuristic());
     }
 
     @Override
@@ -303,30 +566,65 @@ public class GameState implements Comparable<GameState> {
 
         GameState gameState = (GameState) o;
 
+        // different hashes always mean different states, so most unequal states are rejected without walking the arrays
+        if (zobristHash != gameState.zobristHash) return false;
         if (playerNum != gameState.playerNum) return false;
         if (buildPeasants != gameState.buildPeasants) return false;
         if (requiredGold != gameState.requiredGold) return false;
         if (requiredWood != gameState.requiredWood) return false;
         if (currentGold != gameState.currentGold) return false;
         if (currentWood != gameState.currentWood) return false;
-        if (!goldLocations.equals(gameState.goldLocations)) return false;
-        if (!treeLocations.equals(gameState.treeLocations)) return false;
-        return peasants.equals(gameState.peasants);
+        if (canonicalPeasants) {
+            if (!Arrays.equals(getSortedPeasants(), gameState.getSortedPeasants())) return false;
+        } else {
+            if (!Arrays.equals(peasants, gameState.peasants)) return false;
+        }
+        return Arrays.equals(resourceHarvests, gameState.resourceHarvests);
 
     }
 
     @Override
     public int hashCode() {
-        int result = playerNum;
-        result = 31 * result + (buildPeasants ? 1 : 0);
-        result = 31 * result + requiredGold;
-        result = 31 * result + requiredWood;
-        result = 31 * result + currentGold;
-        result = 31 * result + currentWood;
-        result = 31 * result + goldLocations.hashCode();
-        result = 31 * result + treeLocations.hashCode();
-        result = 31 * result + peasants.hashCode();
-        return result;
+        return (int) (zobristHash ^ (zobristHash >>> 32));
+    }
+
+    /**
+     * Computes the Zobrist hash from scratch. Only the initial state needs this, children are given their hash by the
+     * action that created them.
+     *
+     * @return The sum of the keys of every peasant, resource and resource total
+     */
+    private long computeZobristHash() {
+        long hash = Zobrist.gold(currentGold) + Zobrist.wood(currentWood);
+        for (int i = 0; i < resourceHarvests.length; i++) {
+            hash += Zobrist.resource(i, resourceHarvests[i]);
+        }
+        for (int i = 0; i < peasants.length; i++) {
+            hash += peasantKey(i + 1, peasants[i]);
+        }
+        return hash;
+    }
+
+    /**
+     * Actions use this instead of Zobrist.peasant directly so that canonical peasant mode can drop the id from the key.
+     *
+     * @param peasantID The id of the peasant
+     * @param packed The packed peasant
+     * @return The Zobrist key for the peasant in this state's hash
+     */
+    public long peasantKey(int peasantID, int packed) {
+        return Zobrist.peasant(canonicalPeasants ? 0 : peasantID, packed);
+    }
+
+    /**
+     * @return The packed peasants in sorted order, which is the same for any permutation of the peasants
+     */
+    private int[] getSortedPeasants() {
+        if (sortedPeasants == null) {
+            sortedPeasants = peasants.clone();
+            Arrays.sort(sortedPeasants);
+        }
+        return sortedPeasants;
     }
 
     @Override
@@ -334,13 +632,98 @@ public class GameState implements Comparable<GameState> {
         return "GameState {" + "\n\t" +
                 "currentGold=" + currentGold + ",\n\t" +
                 "currentWood=" + currentWood + ",\n\t" +
-                "goldLocations=" + Arrays.toString(goldLocations.toArray()) + ",\n\t" +
-                "treeLocations=" + Arrays.toString(treeLocations.toArray()) + ",\n\t" +
-                "peasants=" + Arrays.toString(peasants.values().toArray()) + ",\n\t" +
-                "previousActions=" + Arrays.toString(previousActions.toArray()) +
+                "goldLocations=" + Arrays.toString(getGoldLocations().toArray()) + ",\n\t" +
+                "treeLocations=" + Arrays.toString(getTreeLocations().toArray()) + ",\n\t" +
+                "peasants=" + Arrays.toString(getPeasants().toArray()) + ",\n\t" +
+                "cost=" + cost + ",\n\t" +
+                "heuristic=" + heuristic() + ",\n\t" +
+                "action=" + action +
                 '}';
     }
 
+    /**
+     * @return The total duration of the actions taken to reach this state (g)
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * @return The cost plus the heuristic (f)
+     */
+    public double getTotalCost() {
+        heuristic();
+        return totalCost;
+    }
+
+    public long getZobristHash() {
+        return zobristHash;
+    }
+
+    public boolean isCanonicalPeasants() {
+        return canonicalPeasants;
+    }
+
+    public int getParallelChildThreshold() {
+        return parallelChildThreshold;
+    }
+
+    /**
+     * Sets the number of joint actions at which children are built in parallel. Call this on the initial state before
+     * searching, every state generated from it inherits the setting.
+     *
+     * @param parallelChildThreshold The threshold, or 0 to always build children on the calling thread
+     */
+    public void setParallelChildThreshold(int parallelChildThreshold) {
+        this.parallelChildThreshold = parallelChildThreshold;
+    }
+
+    public boolean isHarvestCycles() {
+        return harvestCycles;
+    }
+
+    /**
+     * Turns HarvestCycleActions on or off. Call this on the initial state before searching, every state generated from
+     * it inherits the setting.
+     *
+     * @param harvestCycles True if a peasant's round trip to a resource may be planned as one action
+     */
+    public void setHarvestCycles(boolean harvestCycles) {
+        this.harvestCycles = harvestCycles;
+    }
+
+    public DistanceOracle getDistanceOracle() {
+        return distanceOracle;
+    }
+
+    /**
+     * @return The distance from every tile to the nearest gold mine that has not run out, see DistanceOracle
+     */
+    public int[] getGoldDistances() {
+        return goldDistances;
+    }
+
+    /**
+     * @return The distance from every tile to the nearest tree that has not run out, see DistanceOracle
+     */
+    public int[] getTreeDistances() {
+        return treeDistances;
+    }
+
+    public Heuristic getHeuristicFunction() {
+        return heuristicFunction;
+    }
+
+    /**
+     * Sets the heuristic used to estimate the remaining cost. Call this on the initial state before searching, every
+     * state generated from it inherits the heuristic.
+     *
+     * @param heuristicFunction The heuristic, DistanceHeuristic by default
+     */
+    public void setHeuristicFunction(Heuristic heuristicFunction) {
+        this.heuristicFunction = heuristicFunction;
+    }
+
     public int getPlayerNum() {
         return playerNum;
     }
@@ -365,25 +748,74 @@ public class GameState implements Comparable<GameState> {
         return requiredWood;
     }
 
+    /**
+     * Builds the list of gold mines that have not run out. The search itself reads the resource table and
+     * getResourceHarvests directly, this is for printing and for code outside the search.
+     *
+     * @return The gold mines with the amount left at each
+     */
     public List<ResourceLocation> getGoldLocations() {
-        return goldLocations;
+        return getResourceLocations(0, resourceTable.getGoldCount());
     }
 
+    /**
+     * @return The trees that have not run out, see getGoldLocations
+     */
     public List<ResourceLocation> getTreeLocations() {
-        return treeLocations;
+        return getResourceLocations(resourceTable.getGoldCount(), resourceTable.size());
+    }
+
+    private List<ResourceLocation> getResourceLocations(int from, int to) {
+        List<ResourceLocation> resources = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (resourceHarvests[i] > 0) {
+                resources.add(new ResourceLocation(resourceTable.getPosition(i), resourceTable.getType(i), resourceHarvests[i] * 100));
+            }
+        }
+        return resources;
     }
 
-    public List<ResourceLocation> getAllResourceLocations() {
-        List<ResourceLocation> allResources = new ArrayList<>(goldLocations);
-        allResources.addAll(treeLocations);
-        return allResources;
+    public ResourceTable getResourceTable() {
+        return resourceTable;
     }
 
+    /**
+     * @return The number of harvests left at each resource in the resource table. This is shared, do not modify it.
+     */
+    public short[] getResourceHarvests() {
+        return resourceHarvests;
+    }
+
+    /**
+     * @param peasantID The id of the peasant
+     * @return A new Peasant for the packed peasant, or null if there is no peasant with that id
+     */
     public Peasant getPeasant(int peasantID) {
-        return peasants.get(peasantID);
+        if (peasantID < 1 || peasantID > peasants.length) {
+            return null;
+        }
+        return Peasant.unpack(peasantID, peasants[peasantID - 1]);
     }
 
-    public Map<Integer, Peasant> getPeasantsMap() {
+    /**
+     * @return A new Peasant for each packed peasant, ordered by id
+     */
+    public List<Peasant> getPeasants() {
+        List<Peasant> peasantList = new ArrayList<>();
+        for (int i = 0; i < peasants.length; i++) {
+            peasantList.add(Peasant.unpack(i + 1, peasants[i]));
+        }
+        return peasantList;
+    }
+
+    public int getPeasantCount() {
+        return peasants.length;
+    }
+
+    /**
+     * @return The packed peasants, peasant i + 1 is at index i. This is shared, do not modify it.
+     */
+    public int[] getPackedPeasants() {
         return peasants;
     }
 
@@ -391,80 +823,51 @@ public class GameState implements Comparable<GameState> {
         return townhall;
     }
 
-    public Stack<StripsAction> getPreviousActions() {
-        return previousActions;
-    }
-
-    public int getxExtent() {
-        return xExtent;
+    public GameState getParent() {
+        return parent;
     }
 
-    public int getyExtent() {
-        return yExtent;
+    public StripsAction getAction() {
+        return action;
     }
 
     /**
-     * Finds the closest resource to the given position
-     * @param position The given position
-     * @return the closest resource position
+     * Rebuilds the actions taken to reach this state by following the parent pointers. This walks the whole plan, so it
+     * should only be called once a goal has been found.
+     *
+     * @return The actions with the first action at the bottom of the stack and the last action on top
      */
-    private Position findClosestResourcePosition(Position position, ResourceNode.Type resourceType) {
-        Position closestResourcePosition = new Position(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    public Stack<StripsAction> getPreviousActions() {
+        List<StripsAction> actions = new ArrayList<>();
+        for (GameState state = this; state.parent != null; state = state.parent) {
+            actions.add(state.action);
+        }
 
-        for (ResourceLocation resourceLocation : getAllResourceLocations()) {
-            if (resourceLocation.getResourceType().equals(resourceType) && position.chebyshevDistance(resourceLocation.getPosition()) < position.chebyshevDistance(closestResourcePosition)) {
-                closestResourcePosition = resourceLocation.getPosition();
-            }
+        Stack<StripsAction> previousActions = new Stack<>();
+        for (int i = actions.size() - 1; i >= 0; i--) {
+            previousActions.push(actions.get(i));
         }
-        return closestResourcePosition;
+        return previousActions;
     }
 
-    /**
-     * Given a start and end position, finds a new position such that the it is adjacent to end and
-     * closest to the start position.
-     *
-     * @param start The start position
-     * @param end   The end position
-     * @return The closest adjacent position to start
-     */
-    private Position getClosestAdjacentPosition(Position start, Position end) {
-        List<Position> adjacentPositions = end.getAdjacentPositions();
-        Position closestAdjacentPosition = new Position(Integer.MAX_VALUE, Integer.MAX_VALUE);
-        int closestAdjacentPositionDistance = start.chebyshevDistance(closestAdjacentPosition);
-
-        for (Position adjacentPosition : adjacentPositions) {
-            if (start.chebyshevDistance(adjacentPosition) < closestAdjacentPositionDistance) {
-                closestAdjacentPosition = adjacentPosition;
-                closestAdjacentPositionDistance = start.chebyshevDistance(adjacentPosition);
-            }
-        }
+    public int getxExtent() {
+        return xExtent;
+    }
 
-        return closestAdjacentPosition;
+    public int getyExtent() {
+        return yExtent;
     }
 
     /**
-     * Finds the cartesian product of each units's actions
-     *
-     * @param actionsList A list of each unit's actions
-     * @return The cartesian product of actions
+     * @return true if a resource that had harvests left in before has none left in after
      */
-    private List<List<StripsAction>> cartesianProduct(List<List<StripsAction>> actionsList) {
-        List<List<StripsAction>> combinations = new ArrayList<>();
-        for (List<StripsAction> actions : actionsList) {
-            List<List<StripsAction>> extraColumnCombinations = new ArrayList<>();
-            for (StripsAction action : actions) {
-                if (combinations.isEmpty()) {
-                    extraColumnCombinations.add(Collections.singletonList(action));
-                } else {
-                    for (List<StripsAction> productList : combinations) {
-                        List<StripsAction> newProductList = new ArrayList<>(productList);
-                        newProductList.add(action);
-                        extraColumnCombinations.add(newProductList);
-                    }
-                }
+    private static boolean depletesResource(short[] before, short[] after) {
+        for (int i = 0; i < after.length; i++) {
+            if (after[i] == 0 && before[i] != 0) {
+                return true;
             }
-            combinations = extraColumnCombinations;
         }
-        return combinations;
+        return false;
     }
+
 }
@@ -0,0 +1,15 @@
+package edu.cwru.sepia.agent.planner;
+
+/**
+ * Estimates the remaining cost from a state to a goal. One instance is shared by every state in a search (see
+ * GameState.setHeuristicFunction), and a state asks for its estimate at most once. The search may run on several
+ * threads, so an implementation must be safe to call from more than one at a time.
+ */
+public interface Heuristic {
+
+    /**
+     * @param state The state to estimate
+     * @return The estimated cost of the cheapest plan from the state to a goal
+     */
+    double estimate(GameState state);
+}
@@ -0,0 +1,199 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.*;
+
+/**
+ * A binary min-heap that also keeps an index from each element to its slot in the heap. This gives O(1) membership
+ * checks and lets an element already in the queue be replaced by a cheaper equal element in O(log n) (decrease-key),
+ * neither of which java.util.PriorityQueue supports.
+ *
+ * Elements are matched with equals/hashCode, so two different objects representing the same state share one entry.
+ *
+ * @param <E> The type of element held in the queue
+ */
+public class IndexedPriorityQueue<E> {
+
+    private final Comparator<? super E> comparator;
+    private final Map<E, Integer> indices;
+    private Object[] heap;
+    private int size;
+
+    /**
+     * Creates a queue ordered by the elements' natural ordering.
+     */
+    public IndexedPriorityQueue() {
+        this(null);
+    }
+
+    /**
+     * Creates a queue ordered by the given comparator.
+     *
+     * @param comparator The comparator to order by, or null to use the natural ordering
+     */
+    public IndexedPriorityQueue(Comparator<? super E> comparator) {
+        this.comparator = comparator;
+        this.indices = new HashMap<>();
+        this.heap = new Object[64];
+        this.size = 0;
+    }
+
+    /**
+     * Adds an element to the queue. If an equal element is already queued this does nothing, use decreaseKey to
+     * replace it.
+     *
+     * @param element The element to add
+     * @return true if the element was added
+     */
+    public boolean add(E element) {
+        if (indices.containsKey(element)) {
+            return false;
+        }
+
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+
+        heap[size] = element;
+        indices.put(element, size);
+        size += 1;
+        siftUp(size - 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the smallest element.
+     *
+     * @return The smallest element, or null if the queue is empty
+     */
+    public E poll() {
+        if (size == 0) {
+            return null;
+        }
+
+        E first = elementAt(0);
+        indices.remove(first);
+        size -= 1;
+
+        if (size > 0) {
+            heap[0] = heap[size];
+            indices.put(elementAt(0), 0);
+            heap[size] = null;
+            siftDown(0);
+        } else {
+            heap[0] = null;
+        }
+
+        return first;
+    }
+
+    /**
+     * @return The smallest element without removing it, or null if the queue is empty
+     */
+    public E peek() {
+        return size == 0 ? null : elementAt(0);
+    }
+
+    /**
+     * @param element The element to look for
+     * @return true if an equal element is queued
+     */
+    public boolean contains(E element) {
+        return indices.containsKey(element);
+    }
+
+    /**
+     * Returns the queued element that is equal to the given one. This is useful when the queued copy carries extra
+     * information (such as its cost) that the given element does not share.
+     *
+     * @param element The element to look for
+     * @return The equal queued element, or null if there is none
+     */
+    public E get(E element) {
+        Integer index = indices.get(element);
+        return index == null ? null : elementAt(index);
+    }
+
+    /**
+     * Replaces the queued element equal to the given one if the given one orders before it, moving it up the heap.
+     *
+     * @param element The new, cheaper element
+     * @return true if the queued element was replaced
+     */
+    public boolean decreaseKey(E element) {
+        Integer index = indices.get(element);
+        if (index == null || compare(element, elementAt(index)) >= 0) {
+            return false;
+        }
+
+        // the old key must be removed first, it is equal to the new one but is a different object
+        indices.remove(element);
+        heap[index] = element;
+        indices.put(element, index);
+        siftUp(index);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(heap, 0, size, null);
+        indices.clear();
+        size = 0;
+    }
+
+    private void siftUp(int index) {
+        E element = elementAt(index);
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            E parentElement = elementAt(parent);
+            if (compare(element, parentElement) >= 0) {
+                break;
+            }
+            heap[index] = parentElement;
+            indices.put(parentElement, index);
+            index = parent;
+        }
+        heap[index] = element;
+        indices.put(element, index);
+    }
+
+    private void siftDown(int index) {
+        E element = elementAt(index);
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && compare(elementAt(right), elementAt(child)) < 0) {
+                child = right;
+            }
+            E childElement = elementAt(child);
+            if (compare(element, childElement) <= 0) {
+                break;
+            }
+            heap[index] = childElement;
+            indices.put(childElement, index);
+            index = child;
+        }
+        heap[index] = element;
+        indices.put(element, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(E a, E b) {
+        if (comparator != null) {
+            return comparator.compare(a, b);
+        }
+        return ((Comparable<? super E>) a).compareTo(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int index) {
+        return (E) heap[index];
+    }
+}
@@ -0,0 +1,168 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.*;
+
+/**
+ * Iterative deepening A* (IDA*). Each iteration is a depth first search that cuts off any state whose f is above the
+ * current bound, and the next iteration raises the bound to the smallest f that was cut off. Only the states on the
+ * current path and their unexplored siblings are kept, so memory grows with the plan length rather than with the number
+ * of states expanded.
+ *
+ * Paths that reach the same state are pruned with a fixed size transposition table (see TranspositionTable), so the
+ * memory used by the search stays bounded no matter how many states it visits.
+ */
+public class IterativeDeepeningSearch {
+
+    private final TranspositionTable table;
+
+    private long expanded;
+
+    /**
+     * @param tableSize The number of entries in the transposition table, rounded up to a power of two
+     */
+    public IterativeDeepeningSearch(int tableSize) {
+        this.table = new TranspositionTable(tableSize);
+    }
+
+    /**
+     * Searches for a plan from the given state.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan, or null if there is none
+     */
+    public Stack<StripsAction> search(GameState startState) {
+        // the iterations only check the states they generate, so a start that is already a goal would never be found
+        if (startState.isGoal()) {
+            return startState.getPreviousActions();
+        }
+
+        double bound = startState.getTotalCost();
+        int iteration = 0;
+        expanded = 0;
+
+        while (true) {
+            iteration += 1;
+            SearchResult result = boundedSearch(startState, bound, iteration);
+            if (result.goal != null) {
+                System.out.println("IDA* finished after " + iteration + " iterations and " + expanded + " expansions");
+                return result.goal.getPreviousActions();
+            }
+            if (Double.isInfinite(result.nextBound)) {
+                return null;
+            }
+            bound = result.nextBound;
+        }
+    }
+
+    /**
+     * Runs one depth first iteration. The children of each state are tried cheapest first, which is what lets the last
+     * iteration find the goal early.
+     *
+     * @param startState The root of the search
+     * @param bound States with f above this are cut off
+     * @param iteration The iteration number, used to tell this iteration's table entries from older ones
+     * @return The goal if one was found, and the smallest f that was cut off
+     */
+    private SearchResult boundedSearch(GameState startState, double bound, int iteration) {
+        double nextBound = Double.POSITIVE_INFINITY;
+
+        // each entry holds the children of one state on the current path that have not been tried yet
+        Deque<Iterator<GameState>> path = new ArrayDeque<>();
+        table.visit(startState, iteration);
+        path.push(sortedChildren(startState));
+
+        while (!path.isEmpty()) {
+            Iterator<GameState> children = path.peek();
+            if (!children.hasNext()) {
+                path.pop();
+                continue;
+            }
+
+            GameState child = children.next();
+            if (child.getTotalCost() > bound) {
+                nextBound = Math.min(nextBound, child.getTotalCost());
+                continue;
+            }
+            if (!table.visit(child, iteration)) {
+                continue;
+            }
+            if (child.isGoal()) {
+                return new SearchResult(child, nextBound);
+            }
+
+            path.push(sortedChildren(child));
+        }
+
+        return new SearchResult(null, nextBound);
+    }
+
+    private Iterator<GameState> sortedChildren(GameState state) {
+        expanded += 1;
+        List<GameState> children = state.generateChildren();
+        Collections.sort(children);
+        return children.iterator();
+    }
+
+    private static class SearchResult {
+        final GameState goal;
+        final double nextBound;
+
+        SearchResult(GameState goal, double nextBound) {
+            this.goal = goal;
+            this.nextBound = nextBound;
+        }
+    }
+
+    /**
+     * A direct mapped table from Zobrist hash to the cheapest cost a state has been reached with in the current
+     * iteration. A state reached again at the same or a higher cost has already been searched with at least as much
+     * budget, so it is skipped.
+     *
+     * Each hash maps to one slot. When two states want the same slot in one iteration the one reached more cheaply keeps
+     * it, since it sits closer to the root and pruning it saves more work. Entries from older iterations are always
+     * replaced. Only the 64 bit hash is stored, not the state, so a lookup never holds on to a GameState.
+     */
+    private static class TranspositionTable {
+
+        private final long[] hashes;
+        private final double[] costs;
+        private final int[] iterations;
+        private final int mask;
+
+        TranspositionTable(int size) {
+            int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+            this.hashes = new long[capacity];
+            this.costs = new double[capacity];
+            this.iterations = new int[capacity];
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * Records a visit to the state.
+         *
+         * @return false if the state was already reached at the same or a lower cost in this iteration
+         */
+        boolean visit(GameState state, int iteration) {
+            long hash = state.getZobristHash();
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+
+            if (iterations[slot] == iteration) {
+                if (hashes[slot] == hash) {
+                    if (costs[slot] <= state.getCost()) {
+                        return false;
+                    }
+                } else if (costs[slot] <= state.getCost()) {
+                    // the slot belongs to a state closer to the root, keep it
+                    return true;
+                }
+            }
+
+            hashes[slot] = hash;
+            costs[slot] = state.getCost();
+            iterations[slot] = iteration;
+            return true;
+        }
+    }
+}
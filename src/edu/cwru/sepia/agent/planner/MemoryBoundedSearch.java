@@ -0,0 +1,189 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.*;
+
+/**
+ * Simplified memory bounded A* (SMA*). The search tree is kept in memory like A*, but never holds more than a fixed
+ * number of nodes. When expanding a node goes over the budget, the worst leaf (highest f, shallowest on ties) is
+ * dropped and its f is remembered by its parent. A parent that has lost all of its children becomes a leaf again with
+ * the best f it forgot, so the dropped part of the tree is only regenerated if it becomes the best option again.
+ *
+ * Only the nodes in the tree and the states they point at are live, since a GameState only refers to its ancestors,
+ * which are also in the tree. There is no closed list, paths are only checked against their own ancestors for cycles.
+ */
+public class MemoryBoundedSearch {
+
+    private final int nodeBudget;
+
+    private TreeSet<Node> leaves;
+    private int nodeCount;
+    private long nextId;
+
+    /**
+     * @param nodeBudget The most nodes the search tree may hold at once. A plan can only be found if it is shorter than
+     *                   this.
+     */
+    public MemoryBoundedSearch(int nodeBudget) {
+        this.nodeBudget = Math.max(2, nodeBudget);
+    }
+
+    /**
+     * Searches for a plan from the given state.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan, or null if there is none that fits in the budget
+     */
+    public Stack<StripsAction> search(GameState startState) {
+        // best leaves first: lowest f, then deepest, then newest
+        leaves = new TreeSet<>(new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                int result = Double.compare(a.f, b.f);
+                if (result == 0) {
+                    result = Integer.compare(b.depth, a.depth);
+                }
+                if (result == 0) {
+                    result = Long.compare(b.id, a.id);
+                }
+                return result;
+            }
+        });
+        nodeCount = 0;
+        nextId = 0;
+
+        Node root = new Node(null, startState, startState.getTotalCost());
+        nodeCount += 1;
+        leaves.add(root);
+
+        long expanded = 0;
+        while (!leaves.isEmpty()) {
+            Node best = leaves.first();
+            if (Double.isInfinite(best.f)) {
+                break;
+            }
+
+            if (best.state.isGoal()) {
+                System.out.println("SMA* finished after " + expanded + " expansions");
+                return best.state.getPreviousActions();
+            }
+
+            leaves.remove(best);
+            expanded += 1;
+            expand(best);
+
+            // the best new child is always kept, otherwise the same node could be expanded and trimmed forever
+            Node keep = best.children == null ? null : Collections.min(best.children, leaves.comparator());
+            while (nodeCount > nodeBudget && dropWorstLeaf(keep)) {
+                // keep dropping
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the node's children to the tree. A child's f is never lower than its parent's, so f never decreases along a
+     * path even though the heuristic may. A child too deep to fit its whole path in the budget gets an infinite f.
+     */
+    private void expand(Node node) {
+        node.children = new ArrayList<>();
+        node.forgottenF = Double.POSITIVE_INFINITY;
+
+        for (GameState childState : node.state.children()) {
+            if (node.isOnPath(childState)) {
+                continue;
+            }
+
+            Node child = new Node(node, childState, Math.max(node.f, childState.getTotalCost()));
+            if (child.depth >= nodeBudget - 1 && !childState.isGoal()) {
+                child.f = Double.POSITIVE_INFINITY;
+            }
+            node.children.add(child);
+            nodeCount += 1;
+            leaves.add(child);
+        }
+
+        if (node.children.isEmpty()) {
+            // a dead end, it can never lead to a goal
+            node.children = null;
+            node.f = Double.POSITIVE_INFINITY;
+            release(node);
+        }
+    }
+
+    /**
+     * Drops the worst leaf and backs its f up to its parent.
+     *
+     * @param keep A leaf that must not be dropped, may be null
+     * @return false if there was no leaf that could be dropped
+     */
+    private boolean dropWorstLeaf(Node keep) {
+        Node worst = leaves.last();
+        if (worst == keep) {
+            worst = leaves.lower(keep);
+        }
+        if (worst == null || worst.parent == null) {
+            return false;
+        }
+
+        leaves.remove(worst);
+        release(worst);
+        return true;
+    }
+
+    /**
+     * Removes a leaf from the tree and remembers its f in its parent. If that was the parent's last child, the parent
+     * becomes a leaf again with the best f it forgot.
+     */
+    private void release(Node leaf) {
+        Node parent = leaf.parent;
+        if (parent == null) {
+            return;
+        }
+
+        parent.children.remove(leaf);
+        parent.forgottenF = Math.min(parent.forgottenF, leaf.f);
+        nodeCount -= 1;
+
+        if (parent.children.isEmpty()) {
+            parent.children = null;
+            parent.f = Math.max(parent.f, parent.forgottenF);
+            leaves.add(parent);
+        }
+    }
+
+    private class Node {
+        final Node parent;
+        final GameState state;
+        final int depth;
+        final long id;
+        double f;
+
+        // null while this node is a leaf
+        List<Node> children;
+        // the lowest f among children that were dropped since this node was last expanded
+        double forgottenF;
+
+        Node(Node parent, GameState state, double f) {
+            this.parent = parent;
+            this.state = state;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.id = nextId++;
+            this.f = f;
+        }
+
+        /**
+         * @return True if the state is this node's or one of its ancestors' state
+         */
+        boolean isOnPath(GameState other) {
+            for (Node node = this; node != null; node = node.parent) {
+                if (node.state.equals(other)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
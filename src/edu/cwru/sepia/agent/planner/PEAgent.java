@@ -15,6 +15,7 @@ import edu.cwru.sepia.environment.model.state.Unit;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * This is an outline of the PEAgent. Implement the provided methods. You may add your own methods and members.
@@ -22,9 +23,16 @@ import java.util.*;
 public class PEAgent extends Agent {
 
     private static final int MAX_PEASANTS = 3;
+    // The most states a plan repair may expand
+    private static final int REPAIR_BUDGET = 2000;
+    // How many repairs in a row may fail before a peasant's broken trip is dropped
+    private static final int MAX_REPAIR_ATTEMPTS = 4;
 
-    // The plan being executed
-    private Stack<StripsAction> plan = null;
+    // Plan segments handed over by the planner that have not been split into the peasants' stacks yet. The planner may
+    // add to this from another thread, everything else is only touched by the agent's thread.
+    private final ConcurrentLinkedQueue<Stack<StripsAction>> pendingSegments;
+    // Set once the planner has handed over its last segment
+    private volatile boolean planFinished;
 
     // maps the real unit Ids to the plan's unit ids
     // when you're planning you won't know the true unit IDs that sepia assigns. So you'll use placeholders (1, 2, 3).
@@ -33,26 +41,72 @@ public class PEAgent extends Agent {
     private int townhallId;
     private int peasantTemplateId;
     private int currentStackIndex;
+    // The action stacks in the order their peasants appear in the plan
+    private List<Stack<StripsAction>> stackList;
     // Maps peasant ids to their respective action stack
     private Map<Integer, Stack<StripsAction>> peasantActionMap;
     private Map<Integer, Boolean> isPeasantActivatedMap;
-    private Map<Integer, StripsAction> previousActionMap;
+
+    // Peasants that can be given their next action this turn, by plan id. A peasant leaves the queue when it is given an
+    // action and comes back when the action is done, so each turn only looks at the peasants that need an action.
+    private Deque<Integer> readyPeasants;
+    // Peasants waiting on an action, from the real id of the unit doing it to the peasant's plan id. A build is done by
+    // the townhall, so it is listed under the townhall's id and the peasant whose stack it came from waits for it.
+    // Every SEPIA action can take several turns, so a peasant is only ready again once the command feedback says its
+    // action completed or failed.
+    private Map<Integer, Integer> busyPeasants;
+    // The action each unit was last given, by real unit id, until the command feedback says it is over
+    private Map<Integer, StripsAction> issuedActions;
+
+    // The game as the plan sees it. It is built from the state view once and then kept up to date by applying each
+    // action once SEPIA reports it completed, so checking an action's preconditions never has to rebuild it.
+    private GameState currentState;
+    private PlanRepair planRepair;
+    // For each peasant whose last repair failed, how many have failed in a row and the turn it may try again. The wait
+    // doubles with each failure, so a peasant that cannot be repaired does not search every turn.
+    private Map<Integer, Integer> repairFailures;
+    private Map<Integer, Integer> repairRetryTurn;
 
     public PEAgent(int playernum, Stack<StripsAction> plan) {
+        this(playernum);
+        addPlanSegment(plan);
+        finishPlan();
+    }
+
+    /**
+     * Creates a PEAgent that does not have its plan yet. The planner hands the plan over a segment at a time with
+     * addPlanSegment and calls finishPlan after the last one. Until then a peasant that runs out of actions waits for
+     * the next segment instead of being sent out of the way.
+     */
+    public PEAgent(int playernum) {
         super(playernum);
         peasantIdMap = new HashMap<Integer, Integer>();
-        List<StripsAction> stackList = new ArrayList<>(plan);
-        Stack<StripsAction> reversePlan = new Stack<StripsAction>();
-        for(int i = stackList.size()-1; i>=0;i--){
-            reversePlan.push(stackList.get(i));
-        }
-        this.plan = reversePlan;
+        pendingSegments = new ConcurrentLinkedQueue<>();
+        planFinished = false;
+        planRepair = new PlanRepair(REPAIR_BUDGET);
+        repairFailures = new HashMap<>();
+        repairRetryTurn = new HashMap<>();
+    }
 
+    /**
+     * Adds the next part of the plan. It must start in the state the previous segment ends in. This may be called from
+     * any thread, the segment is split into the peasants' stacks at the start of the next turn.
+     *
+     * @param segment The actions of the segment, in the order returned by GameState.getPreviousActions
+     */
+    public void addPlanSegment(Stack<StripsAction> segment) {
+        pendingSegments.add(segment);
+    }
+
+    /**
+     * Marks the plan as complete. Must be called after the last addPlanSegment.
+     */
+    public void finishPlan() {
+        planFinished = true;
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
-       Map<Integer, Stack<StripsAction>> peasantActionMap = new HashMap<>();
 
         // gets the townhall ID and the peasant ID
         for(int unitId : stateView.getUnitIds(playernum)) {
@@ -73,53 +127,68 @@ public class PEAgent extends Agent {
             }
         }
 
-        Stack<StripsAction> reversedPlan = (Stack<StripsAction>) plan.clone();
-        Collections.reverse(reversedPlan);
-
-        List<Stack<StripsAction>> stackList = Arrays.asList(new Stack<>(), new Stack<>(), new Stack<>());
+        // The plan numbers the peasants that exist at the start 1, 2, ... and every one of them starts out active
+        this.stackList = new ArrayList<>();
+        this.peasantActionMap = new HashMap<>();
         this.isPeasantActivatedMap = new HashMap<>();
+        this.readyPeasants = new ArrayDeque<>();
+        this.busyPeasants = new HashMap<>();
+        this.issuedActions = new HashMap<>();
+        this.currentState = getCurrentGameState(stateView);
+        for (int peasantID = 1; peasantID <= peasantIdMap.size(); peasantID++) {
+            Stack<StripsAction> stack = new Stack<>();
+            stackList.add(stack);
+            peasantActionMap.put(peasantID, stack);
+            isPeasantActivatedMap.put(peasantID, true);
+            readyPeasants.add(peasantID);
+        }
+
+        return middleStep(stateView, historyView);
+    }
 
-        // The first parallel action will always only have one peasant. Initialize that peasant in the peasantActionMap
-        StripsAction firstAction = plan.peek();
-        ParallelAction firstParallelAction = (ParallelAction) firstAction;
-        peasantActionMap.put(findIdByAction(firstParallelAction.getActions().get(0)), stackList.get(0));
-        isPeasantActivatedMap.put(findIdByAction(firstParallelAction.getActions().get(0)), true);
-        int currentStackIndex = 1;
-        for (StripsAction action : reversedPlan) {
-            ParallelAction parallelAction = (ParallelAction) action;
-
-            // There must be a BuildPeasantAction!!!!!!!!
-            if (parallelAction.getActions().size() > currentStackIndex) {
+    /**
+     * Splits the segments the planner has handed over since the last turn into the peasants' action stacks. The top of
+     * each stack is the peasant's next action, so the new actions go underneath the ones already there.
+     */
+    private void spliceSegments() {
+        Stack<StripsAction> segment;
+        while ((segment = pendingSegments.poll()) != null) {
+            // iterating a stack goes from the bottom up, which is the order the actions are executed in
+            for (StripsAction action : segment) {
+                ParallelAction parallelAction = (ParallelAction) action;
+
+                // Idle peasants are left out of a parallel action, so look for the BuildPeasantAction itself rather
+                // than counting actions
                 for (StripsAction stripsAction : parallelAction.getActions()) {
                     if (stripsAction instanceof BuildPeasantAction) {
                         BuildPeasantAction buildPeasantAction = (BuildPeasantAction) stripsAction;
-                        stackList.get(currentStackIndex - 1).push(buildPeasantAction); // push the build peasant action on the previous peasant's stack
-                        peasantActionMap.put(buildPeasantAction.getNewID(), stackList.get(currentStackIndex));
+                        stackList.get(stackList.size() - 1).add(0, buildPeasantAction); // the build peasant action goes on the previous peasant's stack
+                        Stack<StripsAction> stack = new Stack<>();
+                        stackList.add(stack);
+                        peasantActionMap.put(buildPeasantAction.getNewID(), stack);
                         isPeasantActivatedMap.put(buildPeasantAction.getNewID(), false);
-                        currentStackIndex += 1;
                     }
                 }
-            }
 
-            // For every action in parallelAction, add that action to the specific unit's action stack
-            for (StripsAction stripsAction : parallelAction.getActions()) {
-                // this was already dealt with, skip it
-                if (stripsAction instanceof BuildPeasantAction) {
-                    continue;
-                }
+                // For every action in parallelAction, add that action to the specific unit's action stack
+                for (StripsAction stripsAction : parallelAction.getActions()) {
+                    // this was already dealt with, skip it
+                    if (stripsAction instanceof BuildPeasantAction) {
+                        continue;
+                    }
 
-                peasantActionMap.get(findIdByAction(stripsAction)).push(stripsAction);
-            }
-        }
+                    // a round trip is executed as the primitive actions it is made of
+                    if (stripsAction instanceof HarvestCycleAction) {
+                        for (StripsAction step : ((HarvestCycleAction) stripsAction).getActions()) {
+                            peasantActionMap.get(findIdByAction(step)).add(0, step);
+                        }
+                        continue;
+                    }
 
-        for (Stack<StripsAction> stack : peasantActionMap.values()) {
-            Collections.reverse(stack);
+                    peasantActionMap.get(findIdByAction(stripsAction)).add(0, stripsAction);
+                }
+            }
         }
-
-        this.peasantActionMap = peasantActionMap;
-        this.previousActionMap = new HashMap<>();
-
-        return middleStep(stateView, historyView);
     }
 
     /**
@@ -176,46 +245,120 @@ public class PEAgent extends Agent {
     public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
         Map<Integer, Action> actionMap = new HashMap<>();
 
+        // read before splicing, so that if the plan is finished its last segment is certainly spliced below
+        boolean finished = planFinished;
+        spliceSegments();
+
+        // The feedback is keyed by unit id, so each entry is matched to its peasant directly. Actions still in progress
+        // are left alone.
+        Map<Integer, ActionResult> feedback = historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
+        for (Map.Entry<Integer, ActionResult> result : feedback.entrySet()) {
+            ActionFeedback actionFeedback = result.getValue().getFeedback();
+            if (actionFeedback == ActionFeedback.INCOMPLETE) {
+                continue;
+            }
+
+            StripsAction issuedAction = issuedActions.remove(result.getKey());
+            Integer peasantID = busyPeasants.remove(result.getKey());
+            if (issuedAction == null || peasantID == null) {
+                continue;
+            }
+            readyPeasants.add(peasantID);
+
+            if (actionFeedback == ActionFeedback.COMPLETED) {
+                // a new peasant is added to the current state when its birth log shows up
+                if (!(issuedAction instanceof BuildPeasantAction)) {
+                    updateState(issuedAction);
+                }
+            } else if (issuedAction instanceof BuildPeasantAction) {
+                // try the build again once the townhall can do it
+                peasantActionMap.get(peasantID).push(issuedAction);
+            } else {
+                // The game has gone somewhere the plan did not expect. Put the action back and repair the plan
+                // from where the peasant really is.
+                if (issuedAction instanceof MoveAction) {
+                    // a failed move can stop anywhere along the way
+                    syncPosition(peasantID, result.getKey(), stateView);
+                }
+                System.out.println(issuedAction + " failed, repairing the plan");
+                peasantActionMap.get(peasantID).push(issuedAction);
+                repairPlan(peasantID, peasantActionMap.get(peasantID), stateView.getTurnNumber(), issuedAction);
+            }
+        }
+
+        // a new peasant is ready as soon as it shows up
         List<BirthLog> logs = historyView.getBirthLogs(stateView.getTurnNumber()-1);
         if (logs.size() > 0) {
             BirthLog log = logs.get(logs.size() - 1);
-            peasantIdMap.put(getActivatedPeasantId(), log.getNewUnitID());
-        }
+            int peasantID = getActivatedPeasantId();
+            peasantIdMap.put(peasantID, log.getNewUnitID());
+            readyPeasants.add(peasantID);
 
-        for (Integer peasantID : peasantActionMap.keySet()) {
+            // the plan puts new peasants next to the townhall, but SEPIA picks the tile
+            updateState(new BuildPeasantAction());
+            syncPosition(peasantID, log.getNewUnitID(), stateView);
+        }
 
+        int ready = readyPeasants.size();
+        for (int i = 0; i < ready; i++) {
+            int peasantID = readyPeasants.poll();
             Stack<StripsAction> actionStack = peasantActionMap.get(peasantID);
-            if (isPeasantActivatedMap.get(peasantID) && isActionComplete(previousActionMap.get(peasantID), stateView, historyView)) {
-                // There is a one turn gap where the new unit doesn't show up.
-                if (!peasantIdMap.containsKey(peasantID)) {
-                    continue;
-                }
 
-                StripsAction stripsAction;
-                try {
-                    stripsAction = actionStack.pop();
-                } catch (EmptyStackException e) {
-                    // once peasants are done, make them go away
-                    stripsAction = getFinalPeasantAction(peasantID, stateView);
+            // There is a one turn gap where the new unit doesn't show up.
+            // the planner is still working on the rest of the plan, wait for it
+            if (!peasantIdMap.containsKey(peasantID) || (actionStack.isEmpty() && !finished)) {
+                readyPeasants.add(peasantID);
+                continue;
+            }
+
+            // the last repair failed, wait before trying again
+            Integer retryTurn = repairRetryTurn.get(peasantID);
+            if (retryTurn != null && stateView.getTurnNumber() < retryTurn) {
+                readyPeasants.add(peasantID);
+                continue;
+            }
+
+            // the peasant's next action would fail, so repair the plan before it wastes a turn
+            if (!actionStack.isEmpty() && !isExecutable(actionStack.peek())) {
+                System.out.println(actionStack.peek() + " can no longer be done, repairing the plan");
+                if (!repairPlan(peasantID, actionStack, stateView.getTurnNumber(), null)) {
+                    readyPeasants.add(peasantID);
+                    continue;
                 }
+            }
 
-                if (stripsAction instanceof BuildPeasantAction && !stripsAction.preconditionsMet(getCurrentGameState(stateView))) {
-                    System.out.println(stripsAction + " cannot be done right now!");
+            StripsAction stripsAction;
+            try {
+                stripsAction = actionStack.pop();
+            } catch (EmptyStackException e) {
+                // once peasants are done, make them go away
+                stripsAction = getFinalPeasantAction(peasantID, stateView);
+            }
 
-                    if (actionStack.size() == 1) {
-                        actionStack.push(stripsAction);
-                        continue;
-                    }
+            if (stripsAction == null) {
+                // nothing left for this peasant to do
+                continue;
+            }
 
+            // the townhall can only build one peasant at a time
+            if (stripsAction instanceof BuildPeasantAction && (busyPeasants.containsKey(townhallId) || !stripsAction.preconditionsMet(currentState))) {
+                System.out.println(stripsAction + " cannot be done right now!");
 
-                    StripsAction buildPeasantAction = stripsAction;
-                    stripsAction = actionStack.pop();
-                    actionStack.push(buildPeasantAction);
+                if (actionStack.size() == 1) {
+                    actionStack.push(stripsAction);
+                    readyPeasants.add(peasantID);
+                    continue;
                 }
-                previousActionMap.put(findIdByAction(stripsAction), stripsAction);
-                Action action = createSepiaAction(stripsAction);
-                actionMap.put(action.getUnitId(), action);
+
+
+                StripsAction buildPeasantAction = stripsAction;
+                stripsAction = actionStack.pop();
+                actionStack.push(buildPeasantAction);
             }
+            Action action = createSepiaAction(stripsAction);
+            actionMap.put(action.getUnitId(), action);
+            issuedActions.put(action.getUnitId(), stripsAction);
+            busyPeasants.put(action.getUnitId(), peasantID);
         }
 
         return actionMap;
@@ -250,37 +393,103 @@ public class PEAgent extends Agent {
     }
 
     /**
-     * Given a strips action, determines if that action is complete.
+     * Repairs the peasant's next trip. When the repair fails the peasant waits twice as long as last time before it is
+     * tried again, and after MAX_REPAIR_ATTEMPTS failures in a row the trip is dropped so the peasant can move on.
+     *
+     * A harvest or deposit that fails leaves the current state as it was, so the repair can find the very same action
+     * again. Issuing it would only fail the same way, so that counts as a failed repair too.
      *
-     * @param action      The strips action
-     * @param stateView   The current state view
-     * @param historyView The history view
-     * @return True if the given action is complete, false otherwise
+     * @param peasantID The peasant to repair
+     * @param actionStack The peasant's actions, next action on top
+     * @param turn The current turn
+     * @param failedAction The action SEPIA reported as failed, or null if the repair is not for a failure
+     * @return True if the top of the stack can be executed now, false if the peasant has to wait
      */
-    private boolean isActionComplete(StripsAction action, State.StateView stateView, History.HistoryView historyView) {
-        if (action == null) {
+    private boolean repairPlan(int peasantID, Stack<StripsAction> actionStack, int turn, StripsAction failedAction) {
+        boolean repaired = planRepair.repair(currentState, peasantID, actionStack);
+        if (repaired && failedAction != null && !actionStack.isEmpty() && isSameAction(actionStack.peek(), failedAction)) {
+            System.out.println("The repair for peasant " + peasantID + " found " + failedAction + " again");
+            repaired = false;
+        }
+
+        if (repaired) {
+            repairFailures.remove(peasantID);
+            repairRetryTurn.remove(peasantID);
             return true;
         }
 
-        if (action instanceof MoveAction) {
-            Map<Integer, ActionResult> actionResults = historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1);
-            for (ActionResult result : actionResults.values()) {
-                int unitID = peasantIdMap.get(findIdByAction(action));
-                if ((result.getAction().getUnitId() == unitID || result.getAction().getUnitId() == 0) && result.getFeedback() == ActionFeedback.COMPLETED) {
-                    return true;
-                }
-            }
-        } else if (action instanceof DepositAction || action instanceof HarvestAction) {
-            for (int peasantId : peasantIdMap.keySet()) {
-                return stateView.getUnit(peasantIdMap.get(peasantId)).getCurrentDurativeAction() == null || stateView.getUnit(peasantIdMap.get(peasantId)).getCurrentDurativeProgress() <= 1;
-            }
-        } else {
-            return stateView.getUnit(townhallId).getCurrentDurativeAction() == null || stateView.getUnit(townhallId).getCurrentDurativeProgress() <= 1;
+        int failures = repairFailures.containsKey(peasantID) ? repairFailures.get(peasantID) + 1 : 1;
+        if (failures >= MAX_REPAIR_ATTEMPTS) {
+            System.out.println("Giving up on the next trip of peasant " + peasantID);
+            planRepair.dropTrip(actionStack);
+            repairFailures.remove(peasantID);
+            repairRetryTurn.remove(peasantID);
+            return true;
         }
 
+        repairFailures.put(peasantID, failures);
+        repairRetryTurn.put(peasantID, turn + (1 << failures));
         return false;
     }
 
+    /**
+     * @return True if both are harvests from the same resource or both are deposits. Moves are never the same, since a
+     * failed move updates where the peasant is before the repair.
+     */
+    private static boolean isSameAction(StripsAction action, StripsAction other) {
+        if (action instanceof HarvestAction && other instanceof HarvestAction) {
+            return ((HarvestAction) action).getResourceIndex() == ((HarvestAction) other).getResourceIndex();
+        }
+        return action instanceof DepositAction && other instanceof DepositAction;
+    }
+
+    /**
+     * Checks a harvest or deposit against the current state. Moves are left to SEPIA to find a path for, and builds
+     * are deferred when they cannot be done yet, so both count as executable.
+     *
+     * @param action The next action of a peasant
+     * @return False if the action's preconditions do not hold in the current state
+     */
+    private boolean isExecutable(StripsAction action) {
+        if (action instanceof HarvestAction || action instanceof DepositAction) {
+            return action.preconditionsMet(currentState);
+        }
+        return true;
+    }
+
+    /**
+     * Applies an action SEPIA has carried out to the current state. The result is made the root of a new search so
+     * that the states of earlier turns are not kept alive through the parent pointers.
+     *
+     * @param action The action that was carried out
+     */
+    private void updateState(StripsAction action) {
+        GameState nextState = action.apply(currentState);
+        currentState = new GameState(nextState, nextState.getRequiredGold(), nextState.getRequiredWood());
+    }
+
+    /**
+     * Moves a peasant in the current state to wherever SEPIA says the unit is, for when the unit did not end up where
+     * the plan expected.
+     *
+     * @param peasantID The plan's id for the peasant
+     * @param unitID The real unit id of the peasant
+     * @param stateView The current state view
+     */
+    private void syncPosition(int peasantID, int unitID, State.StateView stateView) {
+        Unit.UnitView unit = stateView.getUnit(unitID);
+        if (unit == null) {
+            return;
+        }
+
+        int peasant = currentState.getPackedPeasants()[peasantID - 1];
+        Position expected = new Position(Peasant.getX(peasant), Peasant.getY(peasant));
+        Position actual = new Position(unit.getXPosition(), unit.getYPosition());
+        if (!expected.equals(actual)) {
+            updateState(new MoveAction(peasantID, expected, actual, stateView.getXExtent(), stateView.getYExtent()));
+        }
+    }
+
     /**
      * Finds the ID of the peasant who was just activated. This is found by finding how many peasants are already active.
      * @return the id of the activated peasant
@@ -305,30 +514,33 @@ public class PEAgent extends Agent {
      * @return The generated strips action
      */
     private StripsAction getFinalPeasantAction(int peasantID, State.StateView stateView) {
-        GameState currentGameState = getCurrentGameState(stateView);
-        Unit.UnitView peasant = stateView.getUnit(peasantIdMap.get(peasantID));
-        Position currentPosition = new Position(peasant.getXPosition(), peasant.getYPosition());
+        int peasant = currentState.getPackedPeasants()[peasantID - 1];
+        Position currentPosition = new Position(Peasant.getX(peasant), Peasant.getY(peasant));
         Position destination = null;
 
-        if (peasant.getCargoAmount() > 0) {
+        if (Peasant.isCarrying(peasant)) {
             DepositAction depositAction = new DepositAction(peasantID);
-            if (depositAction.preconditionsMet(currentGameState)) {
+            if (depositAction.preconditionsMet(currentState)) {
                 System.out.println("Creating final deposit!");
-                depositAction.apply(currentGameState);
+                // works out which way the townhall is, the state it returns is not needed
+                depositAction.apply(currentState);
                 return depositAction;
             } else {
                 // Peasant isn't next to townhall, must move him there
-                destination = new Position(currentGameState.getTownhall().x - 1, currentGameState.getTownhall().y);
+                destination = new Position(currentState.getTownhall().x - 1, currentState.getTownhall().y);
             }
         }
 
         if (destination == null) {
             destination = new Position(0, 0);
+            if (currentPosition.equals(destination)) {
+                // already out of the way, so the peasant is finished
+                return null;
+            }
         }
 
         MoveAction moveAction = new MoveAction(peasantID, currentPosition, destination, stateView.getXExtent(), stateView.getYExtent());
-        if (moveAction.preconditionsMet(currentGameState)) {
-            moveAction.apply(currentGameState);
+        if (moveAction.preconditionsMet(currentState)) {
             return moveAction;
         } else {
             System.out.println("ERROR CREATING FINAL ACTION");
@@ -337,7 +549,8 @@ public class PEAgent extends Agent {
     }
 
     /**
-     * Generates the current state in the game
+     * Generates the current state in the game. This is only done at the start, after that currentState is kept up to
+     * date from the command feedback.
      *
      * @param stateView The current StateView
      * @return the updated state
@@ -0,0 +1,223 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hash distributed A* (HDA*). Every state is owned by one worker, picked from the state's hash, and only its owner
+ * keeps it in an open or closed list. When a worker generates a child owned by another worker it sends the child to
+ * that worker's inbox, which is a lock free queue. Each worker otherwise runs an ordinary A* loop on its own open list.
+ *
+ * Since workers expand states in parallel, a state can reach its owner with a cheaper cost after it was expanded, so
+ * each worker remembers the cheapest cost it has seen for every state and re-opens a state that arrives cheaper.
+ *
+ * When a worker expands a goal it becomes the incumbent if it is cheaper than the current one. The search is over once
+ * no worker has a state with f lower than the incumbent's cost and no state is in flight between workers. This is the
+ * usual A* stopping rule spread over the workers, so with an admissible heuristic the plan is optimal.
+ */
+public class ParallelAstarSearch {
+
+    private final int workerCount;
+
+    private List<ConcurrentLinkedQueue<GameState>> inboxes;
+    private AtomicReference<GameState> incumbent;
+    private AtomicLong sent;
+    private AtomicLong received;
+    private AtomicIntegerArray idle;
+    private volatile boolean done;
+
+    /**
+     * @param workerCount The number of worker threads to search with
+     */
+    public ParallelAstarSearch(int workerCount) {
+        this.workerCount = Math.max(1, workerCount);
+    }
+
+    /**
+     * Searches for a plan from the given state.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan, or null if there is none
+     */
+    public Stack<StripsAction> search(GameState startState) {
+        inboxes = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            inboxes.add(new ConcurrentLinkedQueue<GameState>());
+        }
+        incumbent = new AtomicReference<>();
+        sent = new AtomicLong();
+        received = new AtomicLong();
+        idle = new AtomicIntegerArray(workerCount);
+        done = false;
+
+        startState.heuristic();
+        sent.incrementAndGet();
+        inboxes.get(owner(startState)).add(startState);
+
+        List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int i = 0; i < workerCount; i++) {
+            final Worker worker = new Worker(i);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } catch (Throwable t) {
+                        failures.add(t);
+                        done = true;
+                    }
+                }
+            }, "hda-worker-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                done = true;
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("HDA* worker failed", failures.get(0));
+        }
+
+        GameState goal = incumbent.get();
+        return goal == null ? null : goal.getPreviousActions();
+    }
+
+    /**
+     * @return The index of the worker that owns the state
+     */
+    private int owner(GameState state) {
+        return Math.floorMod(state.hashCode(), workerCount);
+    }
+
+    /**
+     * @return The cost of the best plan found so far, or infinity if there is none
+     */
+    private double incumbentCost() {
+        GameState goal = incumbent.get();
+        return goal == null ? Double.POSITIVE_INFINITY : goal.getCost();
+    }
+
+    /**
+     * Makes the goal the incumbent if it is cheaper than the current one.
+     */
+    private void offerGoal(GameState goal) {
+        GameState current = incumbent.get();
+        while (current == null || goal.getCost() < current.getCost()) {
+            if (incumbent.compareAndSet(current, goal)) {
+                return;
+            }
+            current = incumbent.get();
+        }
+    }
+
+    /**
+     * The search is over when every worker is idle and every state that was sent has been received. The received count
+     * is read before the idle flags and the sent count after them. A worker clears its flag before it counts a state as
+     * received, so if the two counts match, no state was in flight and no worker was busy with one while the flags
+     * were read.
+     */
+    private boolean isFinished() {
+        long receivedCount = received.get();
+        for (int i = 0; i < workerCount; i++) {
+            if (idle.get(i) == 0) {
+                return false;
+            }
+        }
+        return receivedCount == sent.get();
+    }
+
+    private class Worker {
+
+        private final int id;
+        private final ConcurrentLinkedQueue<GameState> inbox;
+        private final IndexedPriorityQueue<GameState> openList;
+        // The cheapest cost this worker has seen for each of its states, open or closed
+        private final Map<GameState, Double> bestCosts;
+
+        Worker(int id) {
+            this.id = id;
+            this.inbox = inboxes.get(id);
+            this.openList = new IndexedPriorityQueue<>();
+            this.bestCosts = new HashMap<>();
+        }
+
+        void run() {
+            while (!done) {
+                GameState message = inbox.poll();
+                if (message != null) {
+                    idle.set(id, 0);
+                    received.incrementAndGet();
+                    receive(message);
+                    continue;
+                }
+
+                if (!openList.isEmpty() && openList.peek().getTotalCost() < incumbentCost()) {
+                    idle.set(id, 0);
+                    expand(openList.poll());
+                    continue;
+                }
+
+                idle.set(id, 1);
+                if (isFinished()) {
+                    done = true;
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+
+        /**
+         * Adds a state owned by this worker to the open list, unless it has already been seen at the same or lower cost.
+         */
+        private void receive(GameState state) {
+            Double bestCost = bestCosts.get(state);
+            if (bestCost != null && bestCost <= state.getCost()) {
+                return;
+            }
+            bestCosts.put(state, state.getCost());
+
+            // if the state is already queued it is replaced by the cheaper copy, otherwise it is opened or re-opened
+            if (!openList.add(state)) {
+                openList.decreaseKey(state);
+            }
+        }
+
+        private void expand(GameState current) {
+            if (current.isGoal()) {
+                offerGoal(current);
+                return;
+            }
+
+            for (GameState child : current.children()) {
+                if (child.getTotalCost() >= incumbentCost()) {
+                    continue;
+                }
+
+                int owner = owner(child);
+                if (owner == id) {
+                    receive(child);
+                } else {
+                    // the heuristic is cached in the state, so it is computed here, before the state is published
+                    // through the queue, and never written by the receiving thread
+                    sent.incrementAndGet();
+                    inboxes.get(owner).add(child);
+                }
+            }
+        }
+    }
+}
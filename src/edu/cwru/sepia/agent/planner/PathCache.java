@@ -0,0 +1,158 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shortest walking distances over the static map. Peasants move in all eight directions but cannot walk through gold
+ * mines, trees or the townhall, so the length of a compound move can be well above the Chebyshev distance between its
+ * ends when something is in the way.
+ *
+ * A breadth first search from a tile finds the path length to every other tile at once, so lengths are cached as one
+ * row per starting tile. Only the most recently used rows are kept, which bounds the memory used no matter how many
+ * different moves the search tries. Other peasants are not treated as obstacles since they keep moving, and resources
+ * are treated as obstacles even after they run out, since the table does not change during planning.
+ */
+public class PathCache {
+
+    /**
+     * The value used for a tile that cannot be reached.
+     */
+    public static final int UNREACHABLE = -1;
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private final int xExtent;
+    private final int yExtent;
+    private final boolean[] blocked;
+    private final Map<Integer, int[]> rows;
+
+    /**
+     * @param xExtent The width of the map
+     * @param yExtent The height of the map
+     * @param obstacles The tiles no peasant can walk onto
+     */
+    public PathCache(int xExtent, int yExtent, List<Position> obstacles) {
+        this(xExtent, yExtent, obstacles, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The most rows of path lengths to keep at once
+     */
+    public PathCache(int xExtent, int yExtent, List<Position> obstacles, final int capacity) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.blocked = new boolean[xExtent * yExtent];
+        for (Position obstacle : obstacles) {
+            if (inBounds(obstacle)) {
+                blocked[index(obstacle.x, obstacle.y)] = true;
+            }
+        }
+
+        // access ordered, so the eldest entry is the least recently used row
+        this.rows = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * The number of steps a peasant needs to walk from one tile to another. If either tile is off the map or blocked,
+     * or there is no path between them, this is the Chebyshev distance, which is what a move would take with nothing
+     * in the way.
+     *
+     * @param from The tile the move starts on
+     * @param to The tile the move ends on
+     * @return The length of the shortest path between them
+     */
+    public int pathLength(Position from, Position to) {
+        int length = shortestPathLength(from, to);
+        return length == UNREACHABLE ? from.chebyshevDistance(to) : length;
+    }
+
+    /**
+     * @param from The tile the move starts on
+     * @param to The tile the move ends on
+     * @return The length of the shortest path between them, or UNREACHABLE if either tile is off the map or blocked, or
+     * there is no path between them
+     */
+    public int shortestPathLength(Position from, Position to) {
+        if (!inBounds(from) || !inBounds(to) || isBlocked(to)) {
+            return UNREACHABLE;
+        }
+
+        int[] row;
+        synchronized (rows) {
+            row = rows.get(index(from.x, from.y));
+        }
+        if (row == null) {
+            row = distancesFrom(Arrays.asList(from));
+            synchronized (rows) {
+                rows.put(index(from.x, from.y), row);
+            }
+        }
+
+        return row[index(to.x, to.y)];
+    }
+
+    /**
+     * Runs a breadth first search outwards from several tiles at once.
+     *
+     * @param sources The tiles to start from, any that are off the map or blocked are skipped
+     * @return The number of steps from the nearest source to every tile, indexed by y * xExtent + x, or UNREACHABLE
+     */
+    public int[] distancesFrom(List<Position> sources) {
+        int[] distances = new int[xExtent * yExtent];
+        Arrays.fill(distances, UNREACHABLE);
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (Position source : sources) {
+            if (inBounds(source) && !isBlocked(source) && distances[index(source.x, source.y)] == UNREACHABLE) {
+                distances[index(source.x, source.y)] = 0;
+                queue.add(index(source.x, source.y));
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int tile = queue.poll();
+            int x = tile % xExtent;
+            int y = tile / xExtent;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int nx = x + dx;
+                    int ny = y + dy;
+                    if (nx < 0 || ny < 0 || nx >= xExtent || ny >= yExtent) {
+                        continue;
+                    }
+                    int next = index(nx, ny);
+                    if (!blocked[next] && distances[next] == UNREACHABLE) {
+                        distances[next] = distances[tile] + 1;
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+
+        return distances;
+    }
+
+    /**
+     * @return true if no peasant can stand on the tile
+     */
+    public boolean isBlocked(Position position) {
+        return blocked[index(position.x, position.y)];
+    }
+
+    private boolean inBounds(Position position) {
+        return position.inBounds(xExtent, yExtent);
+    }
+
+    private int index(int x, int y) {
+        return y * xExtent + x;
+    }
+}
@@ -0,0 +1,239 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exact costs of a simpler problem, precomputed once per map and kept on disk. The pattern is one peasant that starts
+ * next to the townhall and makes k trips for one type of resource. Each trip is a move to the resource, a harvest, a
+ * move back and a deposit, and the peasant ends every trip where it started, so the cheapest way to make k trips is
+ * the k cheapest trips on the map. The database stores, for each type, the total cost of the cheapest k trips for every
+ * k, which is all the costs the pattern can have. Since it covers every trip on the map it does not depend on the goal,
+ * and one file serves every goal on the same map.
+ *
+ * The file is named after a fingerprint of the map and checked against it when loaded, so a file from another map is
+ * never used. It is memory mapped rather than read, so loading it costs nothing however many episodes are run.
+ *
+ * File format, big endian: magic, version, the fingerprint as a long, the number of gold trips G, the number of wood
+ * trips W, then G + 1 gold costs and W + 1 wood costs as ints, each the total cost of the cheapest k trips.
+ */
+public class PatternDatabase {
+
+    private static final int MAGIC = 0x50444221;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4;
+
+    private final IntBuffer goldCosts;
+    private final IntBuffer woodCosts;
+    private final short[] initialHarvests;
+    private final int goldCount;
+
+    private PatternDatabase(IntBuffer goldCosts, IntBuffer woodCosts, ResourceTable resourceTable) {
+        this.goldCosts = goldCosts;
+        this.woodCosts = woodCosts;
+        this.initialHarvests = resourceTable.getInitialHarvests();
+        this.goldCount = resourceTable.getGoldCount();
+    }
+
+    /**
+     * Loads the database for the state's map from the directory, building and saving it first if there is no file for
+     * the map yet or the file cannot be used.
+     *
+     * @param state The initial state of the search
+     * @param directory The directory the database files are kept in
+     * @return The database
+     */
+    public static PatternDatabase load(GameState state, File directory) {
+        long fingerprint = fingerprint(state);
+        File file = new File(directory, String.format("pdb-%016x.bin", fingerprint));
+
+        if (file.exists()) {
+            PatternDatabase database = map(file, fingerprint, state.getResourceTable());
+            if (database != null) {
+                return database;
+            }
+            System.err.println("Rebuilding pattern database " + file);
+        }
+
+        List<Integer> gold = new ArrayList<>();
+        List<Integer> wood = new ArrayList<>();
+        tripCosts(state, gold, wood);
+        try {
+            write(file, fingerprint, prefixSums(gold), prefixSums(wood));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        PatternDatabase database = file.exists() ? map(file, fingerprint, state.getResourceTable()) : null;
+        if (database == null) {
+            // the file could not be written, so keep the table in memory for this run
+            database = new PatternDatabase(IntBuffer.wrap(prefixSums(gold)), IntBuffer.wrap(prefixSums(wood)), state.getResourceTable());
+        }
+        return database;
+    }
+
+    /**
+     * The harvests already taken need not have been the cheapest ones, so the trips that are left are charged as the
+     * cheapest trips on the map. That is never more than the cheapest of the trips that are really left.
+     *
+     * @param done The number of gold harvests already taken from the map
+     * @param trips The number of further gold trips
+     * @return The cost of the cheapest trips on the map for a peasant, or infinity if there are not enough harvests left
+     */
+    public double goldCost(int done, int trips) {
+        return cost(goldCosts, done, trips);
+    }
+
+    /**
+     * @see #goldCost
+     */
+    public double woodCost(int done, int trips) {
+        return cost(woodCosts, done, trips);
+    }
+
+    /**
+     * @return The number of gold harvests taken from the map in the state
+     */
+    public int goldTaken(GameState state) {
+        return taken(state.getResourceHarvests(), 0, goldCount);
+    }
+
+    /**
+     * @return The number of wood harvests taken from the map in the state
+     */
+    public int woodTaken(GameState state) {
+        return taken(state.getResourceHarvests(), goldCount, initialHarvests.length);
+    }
+
+    private int taken(short[] harvests, int from, int to) {
+        int taken = 0;
+        for (int i = from; i < to; i++) {
+            taken += initialHarvests[i] - harvests[i];
+        }
+        return taken;
+    }
+
+    private static double cost(IntBuffer costs, int done, int trips) {
+        int last = costs.limit() - 1;
+        if (Math.min(done, last) + trips > last) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return costs.get(trips) - costs.get(0);
+    }
+
+    /**
+     * Lists the cost of every trip one peasant can make, one per harvest on the map, from the tile next to the townhall
+     * nearest each resource and back.
+     */
+    private static void tripCosts(GameState state, List<Integer> gold, List<Integer> wood) {
+        DistanceOracle distanceOracle = state.getDistanceOracle();
+        ResourceTable resourceTable = state.getResourceTable();
+        short[] harvests = resourceTable.getInitialHarvests();
+        for (int i = 0; i < resourceTable.size(); i++) {
+            Position home = distanceOracle.townhallApproach(resourceTable.getPosition(i));
+            Position approach = distanceOracle.resourceApproach(home, i);
+            int trip = distanceOracle.moveCost(home, approach) + 1 + distanceOracle.moveCost(approach, home) + 1;
+            for (int j = 0; j < harvests[i]; j++) {
+                (resourceTable.isGold(i) ? gold : wood).add(trip);
+            }
+        }
+        Collections.sort(gold);
+        Collections.sort(wood);
+    }
+
+    private static int[] prefixSums(List<Integer> costs) {
+        int[] sums = new int[costs.size() + 1];
+        for (int i = 0; i < costs.size(); i++) {
+            sums[i + 1] = sums[i] + costs.get(i);
+        }
+        return sums;
+    }
+
+    /**
+     * Writes to a temporary file and then moves it into place, so a run that stops part way never leaves a broken file.
+     */
+    private static void write(File file, long fingerprint, int[] gold, int[] wood) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(gold.length - 1);
+            out.writeInt(wood.length - 1);
+            for (int cost : gold) {
+                out.writeInt(cost);
+            }
+            for (int cost : wood) {
+                out.writeInt(cost);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The database in the file, or null if it cannot be read or is for a different map
+     */
+    private static PatternDatabase map(File file, long fingerprint, ResourceTable resourceTable) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != fingerprint) {
+                return null;
+            }
+            int goldTrips = buffer.getInt();
+            int woodTrips = buffer.getInt();
+            if (goldTrips < 0 || woodTrips < 0 || channel.size() != HEADER_BYTES + 4L * (goldTrips + 1 + woodTrips + 1)) {
+                return null;
+            }
+
+            IntBuffer costs = buffer.asIntBuffer();
+            IntBuffer gold = costs.duplicate();
+            gold.limit(goldTrips + 1);
+            gold = gold.slice();
+            IntBuffer wood = costs.duplicate();
+            wood.position(goldTrips + 1);
+            wood = wood.slice();
+            return new PatternDatabase(gold, wood, resourceTable);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * A hash of everything the database depends on: the size of the map, where the townhall is, and where each
+     * resource is, what type it is and how much it starts with.
+     */
+    static long fingerprint(GameState state) {
+        ResourceTable resourceTable = state.getResourceTable();
+        short[] harvests = resourceTable.getInitialHarvests();
+
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, state.getxExtent());
+        hash = mix(hash, state.getyExtent());
+        hash = mix(hash, state.getTownhall().x);
+        hash = mix(hash, state.getTownhall().y);
+        for (int i = 0; i < resourceTable.size(); i++) {
+            hash = mix(hash, resourceTable.getPosition(i).x);
+            hash = mix(hash, resourceTable.getPosition(i).y);
+            hash = mix(hash, resourceTable.isGold(i) ? 1 : 2);
+            hash = mix(hash, harvests[i]);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+}
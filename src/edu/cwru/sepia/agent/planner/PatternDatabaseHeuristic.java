@@ -0,0 +1,58 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+
+/**
+ * Estimates the remaining cost with a PatternDatabase. The trips still needed of each type are looked up as the
+ * cheapest trips on the map, whichever harvests have already been taken, and the peasants are assumed to share them
+ * evenly. A peasant already carrying a load that is still needed only has to walk it to the townhall, so its load is
+ * taken off the trips needed and its walk is added instead. A load that is not needed adds nothing.
+ *
+ * Building peasants is not counted, the same as in the other heuristics.
+ */
+public class PatternDatabaseHeuristic implements Heuristic {
+
+    private static final int TRIP_AMOUNT = 100;
+
+    private final PatternDatabase patternDatabase;
+
+    /**
+     * @param patternDatabase The database for the map being planned on, see PatternDatabase.load
+     */
+    public PatternDatabaseHeuristic(PatternDatabase patternDatabase) {
+        this.patternDatabase = patternDatabase;
+    }
+
+    @Override
+    public double estimate(GameState state) {
+        int goldTrips = tripsNeeded(state.getRequiredGold() - state.getCurrentGold());
+        int woodTrips = tripsNeeded(state.getRequiredWood() - state.getCurrentWood());
+        if (goldTrips == 0 && woodTrips == 0) {
+            return 0;
+        }
+
+        DistanceOracle distanceOracle = state.getDistanceOracle();
+        int[] peasants = state.getPackedPeasants();
+        double cost = 0;
+        for (int peasant : peasants) {
+            ResourceNode.Type cargo = Peasant.getResourceType(peasant);
+            if (cargo == ResourceNode.Type.GOLD_MINE && goldTrips > 0) {
+                goldTrips -= 1;
+            } else if (cargo == ResourceNode.Type.TREE && woodTrips > 0) {
+                woodTrips -= 1;
+            } else {
+                // nothing to carry, or a load that is not needed
+                continue;
+            }
+            cost += distanceOracle.townhallDistance(Peasant.getX(peasant), Peasant.getY(peasant));
+        }
+
+        cost += patternDatabase.goldCost(patternDatabase.goldTaken(state), goldTrips);
+        cost += patternDatabase.woodCost(patternDatabase.woodTaken(state), woodTrips);
+        return cost / peasants.length;
+    }
+
+    private static int tripsNeeded(int amount) {
+        return amount <= 0 ? 0 : (amount + TRIP_AMOUNT - 1) / TRIP_AMOUNT;
+    }
+}
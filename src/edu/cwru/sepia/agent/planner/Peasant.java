@@ -4,9 +4,22 @@ import edu.cwru.sepia.environment.model.state.ResourceNode;
 
 /**
  * Holds information about a specific peasant.
+ *
+ * During the search peasants are stored packed into a single int (see pack), and a Peasant object is only created
+ * when something asks the GameState for one. The packed form keeps x in the low 15 bits, y in the next 15 bits and
+ * the cargo in the top 2 bits (0 for nothing, 1 for gold, 2 for wood).
  */
 public class Peasant {
 
+    private static final int COORDINATE_BITS = 15;
+    private static final int COORDINATE_MASK = (1 << COORDINATE_BITS) - 1;
+    private static final int CARGO_SHIFT = 2 * COORDINATE_BITS;
+    private static final int POSITION_MASK = (1 << CARGO_SHIFT) - 1;
+
+    private static final int NO_CARGO = 0;
+    private static final int GOLD_CARGO = 1;
+    private static final int WOOD_CARGO = 2;
+
     private int id;
     private Position position;
 
@@ -27,6 +40,95 @@ public class Peasant {
         this.resourceType = resourceType;
     }
 
+    /**
+     * Packs a peasant's position and cargo into an int.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param resourceType The type of resource being carried, null if the peasant is not carrying anything
+     * @return The packed peasant
+     */
+    public static int pack(int x, int y, ResourceNode.Type resourceType) {
+        int cargo = NO_CARGO;
+        if (resourceType == ResourceNode.Type.GOLD_MINE) {
+            cargo = GOLD_CARGO;
+        } else if (resourceType == ResourceNode.Type.TREE) {
+            cargo = WOOD_CARGO;
+        }
+        return (cargo << CARGO_SHIFT) | (y << COORDINATE_BITS) | x;
+    }
+
+    /**
+     * Creates the peasant object for a packed peasant.
+     *
+     * @param id The id of the peasant
+     * @param packed The packed peasant
+     * @return The unpacked peasant
+     */
+    public static Peasant unpack(int id, int packed) {
+        Position position = new Position(getX(packed), getY(packed));
+        if (isCarrying(packed)) {
+            return new Peasant(id, position, getResourceType(packed));
+        }
+        return new Peasant(id, position);
+    }
+
+    public static int getX(int packed) {
+        return packed & COORDINATE_MASK;
+    }
+
+    public static int getY(int packed) {
+        return (packed >>> COORDINATE_BITS) & COORDINATE_MASK;
+    }
+
+    public static boolean isCarrying(int packed) {
+        return (packed >>> CARGO_SHIFT) != NO_CARGO;
+    }
+
+    public static ResourceNode.Type getResourceType(int packed) {
+        switch (packed >>> CARGO_SHIFT) {
+            case GOLD_CARGO:
+                return ResourceNode.Type.GOLD_MINE;
+            case WOOD_CARGO:
+                return ResourceNode.Type.TREE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param packed The packed peasant
+     * @param x The new x coordinate
+     * @param y The new y coordinate
+     * @return The packed peasant with the same cargo at the new position
+     */
+    public static int withPosition(int packed, int x, int y) {
+        return (packed & ~POSITION_MASK) | (y << COORDINATE_BITS) | x;
+    }
+
+    /**
+     * @param packed The packed peasant
+     * @param resourceType The new cargo, null for nothing
+     * @return The packed peasant at the same position with the new cargo
+     */
+    public static int withCargo(int packed, ResourceNode.Type resourceType) {
+        return pack(getX(packed), getY(packed), resourceType);
+    }
+
+    /**
+     * @return True if both packed peasants are on the same tile, whatever they are carrying
+     */
+    public static boolean samePosition(int packed, int otherPacked) {
+        return (packed & POSITION_MASK) == (otherPacked & POSITION_MASK);
+    }
+
+    /**
+     * @return This peasant's position and cargo packed into an int
+     */
+    public int pack() {
+        return pack(position.x, position.y, isCarrying ? resourceType : null);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,140 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Keeps finished plans on disk so an episode that starts exactly like an earlier one can skip the search. Plans are
+ * keyed by a fingerprint of the starting state (the map, the resources and the player's units) together with the goal
+ * and the agent's options, since a different search or heuristic could find a different plan.
+ *
+ * A cached plan is never trusted blindly. It is replayed on the start state and used only if every action's
+ * preconditions hold and it ends at a goal, otherwise it is treated as a miss. Replaying also gives each
+ * BuildPeasantAction the id of the peasant it builds, which the PEAgent needs.
+ *
+ * A cache file is the key as a big endian long followed by the plan in the binary plan format, see PlanWriter.
+ */
+public class PlanCache {
+
+    private final File directory;
+
+    /**
+     * @param directory The directory the plans are kept in
+     */
+    public PlanCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the key a plan is stored under.
+     *
+     * @param state The state at the start of the episode
+     * @param playernum The player the plan is for
+     * @param requiredGold The goal amount of gold
+     * @param requiredWood The goal amount of wood
+     * @param buildPeasants True if peasants may be built
+     * @param options The agent's optional arguments
+     * @return The key
+     */
+    public static long key(State.StateView state, int playernum, int requiredGold, int requiredWood, boolean buildPeasants, Map<String, String> options) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, state.getXExtent());
+        hash = mix(hash, state.getYExtent());
+
+        List<ResourceNode.ResourceView> resources = new ArrayList<>(state.getAllResourceNodes());
+        Collections.sort(resources, new Comparator<ResourceNode.ResourceView>() {
+            @Override
+            public int compare(ResourceNode.ResourceView a, ResourceNode.ResourceView b) {
+                return Integer.compare(a.getID(), b.getID());
+            }
+        });
+        for (ResourceNode.ResourceView resource : resources) {
+            hash = mix(hash, resource.getType().ordinal());
+            hash = mix(hash, resource.getXPosition());
+            hash = mix(hash, resource.getYPosition());
+            hash = mix(hash, resource.getAmountRemaining());
+        }
+
+        // units in the order GameState numbers the peasants
+        for (Unit.UnitView unit : state.getUnits(playernum)) {
+            hash = mix(hash, unit.getTemplateView().getName().toLowerCase());
+            hash = mix(hash, unit.getXPosition());
+            hash = mix(hash, unit.getYPosition());
+            hash = mix(hash, unit.getCargoAmount());
+            hash = mix(hash, unit.getCargoType() == null ? -1 : unit.getCargoType().ordinal());
+        }
+
+        hash = mix(hash, requiredGold);
+        hash = mix(hash, requiredWood);
+        hash = mix(hash, buildPeasants ? 1 : 0);
+        for (Map.Entry<String, String> option : new TreeMap<>(options).entrySet()) {
+            hash = mix(hash, option.getKey());
+            hash = mix(hash, option.getValue());
+        }
+        return hash;
+    }
+
+    /**
+     * Looks up the plan for the key and checks it against the start state.
+     *
+     * @param key The key from key()
+     * @param startState The state the plan has to start from
+     * @return The plan, or null if there is none or it does not work from the start state
+     */
+    public Stack<StripsAction> load(long key, GameState startState) {
+        File file = file(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readLong() != key) {
+                System.err.println("Ignoring cached plan " + file + " saved under a different key");
+                return null;
+            }
+            Stack<StripsAction> plan = PlanLoader.load(in, startState);
+            if (plan == null) {
+                System.err.println("Ignoring cached plan " + file);
+            }
+            return plan;
+        } catch (IOException e) {
+            System.err.println("Ignoring cached plan " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the plan under the key, replacing any plan already there.
+     *
+     * @param key The key from key()
+     * @param plan The plan in the order returned by GameState.getPreviousActions
+     */
+    public void store(long key, List<StripsAction> plan) {
+        try {
+            PlanLoader.save(file(key), plan, ByteBuffer.allocate(8).putLong(key).array());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not cache the plan: " + e);
+        }
+    }
+
+    private File file(long key) {
+        return new File(directory, String.format("plan-%016x.bin", key));
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    private static long mix(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = mix(hash, value.charAt(i));
+        }
+        return mix(hash, value.length());
+    }
+}
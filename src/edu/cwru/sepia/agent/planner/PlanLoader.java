@@ -0,0 +1,136 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.MoveAction;
+import edu.cwru.sepia.agent.planner.actions.ParallelAction;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Saves whole plans in the binary plan format and loads them back into the Stack the PEAgent takes.
+ *
+ * A loaded plan is replayed on the start state as it is read. It is only returned if every action's preconditions
+ * hold and it ends at a goal. Replaying also builds each HarvestCycleAction against the state it runs in and gives each
+ * BuildPeasantAction the id of the peasant it builds, which the PEAgent needs.
+ */
+public class PlanLoader {
+
+    /**
+     * Saves the plan to the file, replacing it. The plan is written to a temporary file first and moved into place once
+     * it is complete, so a reader never sees half a plan.
+     *
+     * @param file The file to write
+     * @param plan The plan in the order returned by GameState.getPreviousActions
+     */
+    public static void save(File file, List<StripsAction> plan) throws IOException {
+        save(file, plan, null);
+    }
+
+    /**
+     * Saves the plan after a header of the caller's own, such as the key PlanCache files start with.
+     *
+     * @param header Bytes to write before the plan, or null for none
+     */
+    static void save(File file, List<StripsAction> plan, byte[] header) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        temp.getParentFile().mkdirs();
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+            if (header != null) {
+                out.write(header);
+            }
+            try (PlanWriter writer = new PlanWriter(out)) {
+                for (StripsAction action : plan) {
+                    writer.write(action);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Loads the plan in the file and checks it against the start state.
+     *
+     * @param file The file to read
+     * @param startState The state the plan has to start from
+     * @return The plan, or null if it cannot be applied from the start state or does not reach the goal
+     * @throws IOException if the file cannot be read or is not a plan
+     */
+    public static Stack<StripsAction> load(File file, GameState startState) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return load(in, startState);
+        }
+    }
+
+    /**
+     * Loads a plan from the stream, see load(File, GameState). The stream is read up to the end of the plan.
+     */
+    public static Stack<StripsAction> load(InputStream in, GameState startState) throws IOException {
+        PlanReader reader = new PlanReader(in);
+        Stack<StripsAction> plan = new Stack<>();
+        GameState state = startState;
+        try {
+            for (StripsAction action = reader.read(state); action != null; action = reader.read(state)) {
+                GameState next = replay(action, state);
+                if (next == null) {
+                    System.err.println("Step " + (plan.size() + 1) + " of the saved plan cannot be applied: " + action);
+                    return null;
+                }
+                plan.push(action);
+                state = next;
+            }
+        } catch (RuntimeException e) {
+            // an id or index that does not fit this map
+            System.err.println("Step " + (plan.size() + 1) + " of the saved plan cannot be applied: " + e);
+            return null;
+        }
+
+        if (!state.isGoal()) {
+            System.err.println("The saved plan does not reach the goal");
+            return null;
+        }
+        return plan;
+    }
+
+    /**
+     * Checks the action's preconditions and applies it. A move must also start where its peasant is standing, which
+     * MoveAction does not check itself since the search only ever builds moves from where the peasant is.
+     *
+     * @return The state after the action, or null if it cannot be applied
+     */
+    private static GameState replay(StripsAction action, GameState state) {
+        if (action instanceof ParallelAction) {
+            GameState next = state;
+            for (StripsAction subAction : ((ParallelAction) action).getActions()) {
+                if (!startsAtPeasant(subAction, next) || !subAction.preconditionsMet(next)) {
+                    return null;
+                }
+                next = subAction.apply(next);
+            }
+            return ((ParallelAction) action).applyResult(state, next);
+        }
+
+        if (!startsAtPeasant(action, state) || !action.preconditionsMet(state)) {
+            return null;
+        }
+        return action.apply(state);
+    }
+
+    private static boolean startsAtPeasant(StripsAction action, GameState state) {
+        if (!(action instanceof MoveAction)) {
+            return true;
+        }
+        MoveAction move = (MoveAction) action;
+        if (move.getPeasantID() < 1 || move.getPeasantID() > state.getPeasantCount()) {
+            return false;
+        }
+        int peasant = state.getPackedPeasants()[move.getPeasantID() - 1];
+        return Peasant.getX(peasant) == move.getCurrentPosition().x && Peasant.getY(peasant) == move.getCurrentPosition().y;
+    }
+}
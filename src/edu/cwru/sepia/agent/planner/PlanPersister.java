@@ -0,0 +1,71 @@
+package edu.cwru.sepia.agent.planner;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Writes plans to disk on a background thread, so saving a plan does not hold up the turn it was found in. Writes are
+ * run one at a time in the order they were submitted.
+ *
+ * At most capacity writes wait at once. If more are submitted the caller waits for room, rather than dropping a plan
+ * or running the write itself, which could let an older plan overwrite a newer one. flush waits for every write
+ * submitted so far, and should be called before the agent is done (see PlannerAgent.terminalStep), since the writer
+ * thread is a daemon and would otherwise be stopped when the JVM exits.
+ */
+public class PlanPersister {
+
+    private final ThreadPoolExecutor executor;
+    private final Queue<Future<?>> pending;
+
+    /**
+     * @param capacity The most writes that may wait for the writer thread at once
+     */
+    public PlanPersister(int capacity) {
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(capacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "plan writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable write, ThreadPoolExecutor executor) {
+                        try {
+                            executor.getQueue().put(write);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting to save a plan", e);
+                        }
+                    }
+                });
+        this.pending = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Queues a write. Anything it reads must not be changed afterwards, so pass it a copy of the plan.
+     *
+     * @param write The write to run
+     */
+    public void submit(Runnable write) {
+        pending.add(executor.submit(write));
+    }
+
+    /**
+     * Waits for every write submitted so far to finish. A write that failed has its exception printed.
+     */
+    public void flush() {
+        Future<?> write;
+        while ((write = pending.poll()) != null) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.*;
+import edu.cwru.sepia.util.Direction;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a plan written by PlanWriter one step at a time. See PlanWriter for the format.
+ *
+ * Most actions are read back exactly as they were written. A HarvestCycleAction works out its route from the state it is
+ * built in, so each step is read against the state the plan has reached, which the caller passes in. PlanLoader does
+ * this for a whole plan.
+ */
+public class PlanReader implements Closeable {
+
+    private final InputStream in;
+
+    /**
+     * Reads and checks the header. The stream should be buffered, the reader reads a byte at a time.
+     *
+     * @param in The stream to read the plan from
+     * @throws IOException if the stream is not a plan or is written in a version this reader does not know
+     */
+    public PlanReader(InputStream in) throws IOException {
+        this.in = in;
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | readByte();
+        }
+        if (magic != PlanWriter.MAGIC) {
+            throw new IOException("Not a plan file");
+        }
+        int version = readVarint();
+        if (version != PlanWriter.VERSION) {
+            throw new IOException("Unsupported plan format version " + version);
+        }
+    }
+
+    /**
+     * Reads the next step of the plan.
+     *
+     * @param state The state the plan has reached before this step
+     * @return The step, or null at the end of the plan
+     */
+    public StripsAction read(GameState state) throws IOException {
+        int opcode = readByte();
+        return opcode == PlanWriter.END ? null : readAction(opcode, state);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private StripsAction readAction(int opcode, GameState state) throws IOException {
+        switch (opcode) {
+            case PlanWriter.PARALLEL:
+                int count = readVarint();
+                List<StripsAction> actions = new ArrayList<>(Math.min(count, 16));
+                for (int i = 0; i < count; i++) {
+                    actions.add(readAction(readByte(), state));
+                }
+                return new ParallelAction(actions);
+            case PlanWriter.MOVE:
+                int peasantID = readVarint();
+                Position from = new Position(readVarint(), readVarint());
+                Position to = new Position(readVarint(), readVarint());
+                return new MoveAction(peasantID, from, to, state.getxExtent(), state.getyExtent(), readVarint());
+            case PlanWriter.HARVEST:
+                return new HarvestAction(readVarint(), readVarint(), direction(readVarint()));
+            case PlanWriter.DEPOSIT:
+                peasantID = readVarint();
+                Direction direction = direction(readVarint());
+                return direction == null ? new DepositAction(peasantID) : new DepositAction(peasantID, direction);
+            case PlanWriter.BUILD_PEASANT:
+                return new BuildPeasantAction();
+            case PlanWriter.HARVEST_CYCLE:
+                return new HarvestCycleAction(readVarint(), readVarint(), state);
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("The plan ends early");
+        }
+        return b;
+    }
+
+    private static Direction direction(int code) throws IOException {
+        if (code < 0 || code > Direction.values().length) {
+            throw new IOException("Unknown direction " + code);
+        }
+        return code == 0 ? null : Direction.values()[code - 1];
+    }
+}
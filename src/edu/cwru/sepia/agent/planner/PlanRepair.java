@@ -0,0 +1,224 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.*;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+
+import java.util.*;
+
+/**
+ * Replans one peasant's next trip when SEPIA has not done what the plan expected, for example when a move failed
+ * because another unit was in the way.
+ *
+ * The peasant's stack is split at its next deposit. Everything up to and including that deposit is thrown away and
+ * replaced, the rest of the stack is kept as it is, and so are the other peasants' stacks. The replacement is found by
+ * a small A* from the current state in which only the broken peasant acts, with the goal of getting one more load of
+ * the resource that deposit was going to bring in. The other peasants stay where they are and only get in the way. The
+ * search gives up after a fixed number of expansions, so a repair never holds up a turn for long. A trip that cannot
+ * be repaired can be dropped with dropTrip.
+ */
+public class PlanRepair {
+
+    private static final int TRIP_AMOUNT = 100;
+
+    private final int nodeBudget;
+
+    /**
+     * @param nodeBudget The most states the search may expand before it gives up
+     */
+    public PlanRepair(int nodeBudget) {
+        this.nodeBudget = nodeBudget;
+    }
+
+    /**
+     * Replaces the peasant's next trip on its stack with one that works from the current state. The stack is left
+     * alone if no repair is found.
+     *
+     * @param currentState The state the game is really in
+     * @param peasantID The id of the peasant to repair
+     * @param actionStack The peasant's actions, next action on top
+     * @return True if the stack was repaired
+     */
+    public boolean repair(GameState currentState, int peasantID, Stack<StripsAction> actionStack) {
+        List<StripsAction> trip = nextTrip(actionStack);
+        ResourceNode.Type type = tripType(currentState, peasantID, trip);
+        List<StripsAction> replacement;
+        if (type == null) {
+            // nothing was going to be brought in, so only the moves are out of date
+            replacement = new ArrayList<>();
+        } else {
+            replacement = search(currentState, peasantID, type);
+            if (replacement == null) {
+                return false;
+            }
+        }
+
+        replaceTrip(actionStack, trip, replacement);
+        return true;
+    }
+
+    /**
+     * Throws away the peasant's next trip without replacing it, for when it cannot be repaired. The peasant carries on
+     * with the rest of its stack.
+     *
+     * @param actionStack The peasant's actions, next action on top
+     */
+    public void dropTrip(Stack<StripsAction> actionStack) {
+        replaceTrip(actionStack, nextTrip(actionStack), new ArrayList<StripsAction>());
+    }
+
+    /**
+     * @return The actions on the stack up to and including the next deposit, in the order they would be executed
+     */
+    private static List<StripsAction> nextTrip(Stack<StripsAction> actionStack) {
+        List<StripsAction> trip = new ArrayList<>();
+        for (int i = actionStack.size() - 1; i >= 0; i--) {
+            trip.add(actionStack.get(i));
+            if (actionStack.get(i) instanceof DepositAction) {
+                break;
+            }
+        }
+        return trip;
+    }
+
+    private static void replaceTrip(Stack<StripsAction> actionStack, List<StripsAction> trip, List<StripsAction> replacement) {
+        for (int i = 0; i < trip.size(); i++) {
+            actionStack.pop();
+        }
+        // the townhall's builds were waiting on this peasant's stack, so they go back under the new trip
+        for (int i = trip.size() - 1; i >= 0; i--) {
+            if (trip.get(i) instanceof BuildPeasantAction) {
+                actionStack.push(trip.get(i));
+            }
+        }
+        for (int i = replacement.size() - 1; i >= 0; i--) {
+            actionStack.push(replacement.get(i));
+        }
+    }
+
+    /**
+     * @return The type of resource the trip brings in, or null if it does not bring in anything
+     */
+    private static ResourceNode.Type tripType(GameState state, int peasantID, List<StripsAction> trip) {
+        ResourceNode.Type cargo = Peasant.getResourceType(state.getPackedPeasants()[peasantID - 1]);
+        if (cargo != null) {
+            return cargo;
+        }
+        for (StripsAction action : trip) {
+            if (action instanceof HarvestAction) {
+                return state.getResourceTable().getType(((HarvestAction) action).getResourceIndex());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A* from the current state to one more load of the type, moving only the one peasant.
+     *
+     * @return The actions, first action first, or null if none were found within the budget
+     */
+    private List<StripsAction> search(GameState currentState, int peasantID, ResourceNode.Type type) {
+        boolean gold = type == ResourceNode.Type.GOLD_MINE;
+        GameState startState = new GameState(currentState,
+                gold ? currentState.getCurrentGold() + TRIP_AMOUNT : currentState.getCurrentGold(),
+                gold ? currentState.getCurrentWood() : currentState.getCurrentWood() + TRIP_AMOUNT);
+
+        IndexedPriorityQueue<GameState> priorityQueue = new IndexedPriorityQueue<>();
+        Set<GameState> closedList = new HashSet<>();
+        priorityQueue.add(startState);
+
+        int expanded = 0;
+        while (!priorityQueue.isEmpty() && expanded < nodeBudget) {
+            GameState current = priorityQueue.poll();
+            if (current.isGoal()) {
+                List<StripsAction> actions = new ArrayList<>();
+                for (StripsAction action : current.getPreviousActions()) {
+                    if (action instanceof HarvestCycleAction) {
+                        actions.addAll(((HarvestCycleAction) action).getActions());
+                    } else {
+                        actions.add(action);
+                    }
+                }
+                return actions;
+            }
+
+            expanded += 1;
+            for (StripsAction action : candidateActions(current, peasantID)) {
+                if (!action.preconditionsMet(current)) {
+                    continue;
+                }
+                GameState neighbor = action.apply(current);
+                if (closedList.contains(neighbor)) {
+                    continue;
+                }
+                if (!priorityQueue.add(neighbor)) {
+                    priorityQueue.decreaseKey(neighbor);
+                }
+            }
+            closedList.add(current);
+        }
+
+        System.out.println("No repair found for peasant " + peasantID + " after expanding " + expanded + " states");
+        return null;
+    }
+
+    /**
+     * The peasant's harvest and deposit from GameState, and its moves. The planner only ever sends a peasant to the one
+     * tile nearest its destination, which is often the tile another unit is now standing on, so here a peasant may go
+     * to any free tile next to the townhall or next to a resource of the type that is needed, and may set off for a
+     * resource from anywhere, not just from the townhall.
+     */
+    private static List<StripsAction> candidateActions(GameState state, int peasantID) {
+        List<StripsAction> actions = new ArrayList<>();
+        for (StripsAction action : state.getPeasantActions(peasantID)) {
+            if (!(action instanceof MoveAction)) {
+                actions.add(action);
+            }
+        }
+
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        Position position = new Position(Peasant.getX(peasant), Peasant.getY(peasant));
+        if (Peasant.isCarrying(peasant)) {
+            addMovesNextTo(state, peasantID, position, state.getTownhall(), actions);
+            return actions;
+        }
+
+        ResourceTable resourceTable = state.getResourceTable();
+        short[] harvests = state.getResourceHarvests();
+        for (int resource = 0; resource < resourceTable.size(); resource++) {
+            if (harvests[resource] == 0) {
+                continue;
+            }
+            if (resourceTable.isGold(resource) ? state.getCurrentGold() >= state.getRequiredGold() : state.getCurrentWood() >= state.getRequiredWood()) {
+                continue;
+            }
+            addMovesNextTo(state, peasantID, position, resourceTable.getPosition(resource), actions);
+        }
+        return actions;
+    }
+
+    /**
+     * Adds a move to every tile next to the destination that can be walked on and has no other peasant on it.
+     */
+    private static void addMovesNextTo(GameState state, int peasantID, Position position, Position destination, List<StripsAction> actions) {
+        if (position.isAdjacent(destination)) {
+            return;
+        }
+
+        DistanceOracle distanceOracle = state.getDistanceOracle();
+        for (Position target : destination.getAdjacentPositions()) {
+            if (distanceOracle.isWalkable(target) && !isOccupied(state, peasantID, target)) {
+                actions.add(new MoveAction(peasantID, position, target, state.getxExtent(), state.getyExtent(), distanceOracle.moveCost(position, target)));
+            }
+        }
+    }
+
+    private static boolean isOccupied(GameState state, int peasantID, Position position) {
+        int[] peasants = state.getPackedPeasants();
+        for (int i = 0; i < peasants.length; i++) {
+            if (i != peasantID - 1 && Peasant.getX(peasants[i]) == position.x && Peasant.getY(peasants[i]) == position.y) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
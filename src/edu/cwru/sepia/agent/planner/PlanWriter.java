@@ -0,0 +1,130 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.*;
+import edu.cwru.sepia.util.Direction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes a plan in the compact binary plan format, one action at a time, so a plan never has to be held in any other
+ * form to be saved. Read it back with PlanReader.
+ *
+ * The stream starts with the magic number and the format version, followed by one record per step of the plan and an
+ * END opcode. A record is an opcode byte followed by the action's fields, each as a varint: seven bits per byte, low
+ * bits first, with the top bit set on every byte but the last. Ids, coordinates and costs are small, so almost every
+ * field takes one byte.
+ *
+ * - PARALLEL: the number of actions, then each action as a record
+ * - MOVE: peasant id, start x, start y, target x, target y, cost
+ * - HARVEST: peasant id, resource index, direction
+ * - DEPOSIT: peasant id, direction
+ * - BUILD_PEASANT: nothing
+ * - HARVEST_CYCLE: peasant id, resource index
+ *
+ * Directions are the ordinal plus one, or 0 for none. Resource indices are into the ResourceTable of the map the plan
+ * was made on, so a plan can only be read back against the same map.
+ */
+public class PlanWriter implements Closeable {
+
+    static final int MAGIC = 0x53504c4e;
+    static final int VERSION = 1;
+
+    static final int END = 0;
+    static final int PARALLEL = 1;
+    static final int MOVE = 2;
+    static final int HARVEST = 3;
+    static final int DEPOSIT = 4;
+    static final int BUILD_PEASANT = 5;
+    static final int HARVEST_CYCLE = 6;
+
+    private final OutputStream out;
+
+    /**
+     * Writes the header. The stream should be buffered, the writer writes a byte at a time.
+     *
+     * @param out The stream to write the plan to
+     */
+    public PlanWriter(OutputStream out) throws IOException {
+        this.out = out;
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(MAGIC >>> shift);
+        }
+        writeVarint(VERSION);
+    }
+
+    /**
+     * Writes the next step of the plan.
+     *
+     * @throws IllegalArgumentException if the action is of a type the format has no opcode for
+     */
+    public void write(StripsAction action) throws IOException {
+        if (action instanceof ParallelAction) {
+            List<StripsAction> actions = ((ParallelAction) action).getActions();
+            out.write(PARALLEL);
+            writeVarint(actions.size());
+            for (StripsAction subAction : actions) {
+                write(subAction);
+            }
+        } else if (action instanceof MoveAction) {
+            MoveAction move = (MoveAction) action;
+            out.write(MOVE);
+            writeVarint(move.getPeasantID());
+            writeVarint(move.getCurrentPosition().x);
+            writeVarint(move.getCurrentPosition().y);
+            writeVarint(move.getTargetPosition().x);
+            writeVarint(move.getTargetPosition().y);
+            writeVarint((int) move.getCost());
+        } else if (action instanceof HarvestAction) {
+            HarvestAction harvest = (HarvestAction) action;
+            out.write(HARVEST);
+            writeVarint(harvest.getPeasantID());
+            writeVarint(harvest.getResourceIndex());
+            writeVarint(directionCode(harvest.getResourceDirection()));
+        } else if (action instanceof DepositAction) {
+            DepositAction deposit = (DepositAction) action;
+            out.write(DEPOSIT);
+            writeVarint(deposit.getPeasantID());
+            writeVarint(directionCode(deposit.getTownhallDirection()));
+        } else if (action instanceof BuildPeasantAction) {
+            out.write(BUILD_PEASANT);
+        } else if (action instanceof HarvestCycleAction) {
+            HarvestCycleAction harvestCycle = (HarvestCycleAction) action;
+            out.write(HARVEST_CYCLE);
+            writeVarint(harvestCycle.getPeasantID());
+            writeVarint(harvestCycle.getResourceIndex());
+        } else {
+            throw new IllegalArgumentException("The plan format has no opcode for " + action);
+        }
+    }
+
+    /**
+     * Writes the END opcode and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write(END);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Negative values are written as their unsigned 32 bit value, so they take five bytes but read back exactly.
+     */
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int directionCode(Direction direction) {
+        return direction == null ? 0 : direction.ordinal() + 1;
+    }
+}
@@ -8,6 +8,9 @@ import edu.cwru.sepia.environment.model.state.State;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by  on 3/15/15.
@@ -18,6 +21,60 @@ public class PlannerAgent extends Agent {
     final int requiredGold;
     final boolean buildPeasants;
 
+    // Optional arguments given after the three required ones, each of the form name=value
+    final Map<String, String> options;
+
+    // canonicalPeasants=true: treat peasants as interchangeable when detecting duplicate states
+    final boolean canonicalPeasants;
+
+    // search=astar|hda|ida|sma|anytime|abstract: the search used to find the plan. hda is hash distributed A* on several
+    // threads, ida is iterative deepening A*, which uses much less memory but expands some states more than once, sma is
+    // memory bounded A*, which never keeps more than nodeBudget states, anytime is weighted A* that returns the best
+    // plan it has found once the deadline passes, and abstract plans resource counts only and schedules the peasants
+    // afterwards, for goals too large for the others
+    final String search;
+
+    // workers=N: the number of threads used by the hda search, defaults to the number of processors
+    final int workers;
+
+    // tableSize=N: the number of entries in the ida search's transposition table
+    final int tableSize;
+
+    // nodeBudget=N: the most search nodes the sma search may keep in memory
+    final int nodeBudget;
+
+    // deadline=MS: how long the anytime search may refine its plan, in milliseconds
+    final long deadline;
+
+    // weights=W1,W2,...: the heuristic weights the anytime search tries, in order
+    final double[] weights;
+
+    // harvestCycles=true: plan each peasant's trip from the townhall to a resource and back as one action. Plans are a
+    // quarter as deep and usually cheaper, but the search can take longer when peasants are built
+    final boolean harvestCycles;
+
+    // segments=N: split the goal into N parts and plan them one after another on a background thread, so the PEAgent
+    // can start on the first part while the rest is planned. 1 plans the whole goal before the first turn.
+    final int segments;
+
+    // heuristic=distance|ff|pdb: the heuristic the searches use. distance is the original hand tuned estimate, ff is
+    // the cost of a relaxed plan that ignores delete effects, see RelaxedPlanHeuristic, and pdb looks trips up in a
+    // pattern database that is built once per map and kept in saves, see PatternDatabase
+    final String heuristic;
+
+    // planCache=false: always search instead of reusing a plan saved by an earlier episode that started the same way
+    final boolean usePlanCache;
+
+    // parallelChildren=N: build a state's children on several threads once it has at least N joint actions, 0 for never
+    final int parallelChildThreshold;
+
+    // Plans found by earlier episodes, and the key this episode's plan is kept under
+    final PlanCache planCache;
+    long planKey;
+
+    // Saves plans in the background so it does not delay the first turn
+    final PlanPersister planPersister;
+
     // Your PEAgent implementation. This prevents you from having to parse the text file representation of your plan.
     PEAgent peAgent;
 
@@ -32,14 +89,63 @@ public class PlannerAgent extends Agent {
         requiredGold = Integer.parseInt(params[1]);
         buildPeasants = Boolean.parseBoolean(params[2]);
 
+        options = new HashMap<>();
+        for (int i = 3; i < params.length; i++) {
+            String[] option = params[i].split("=", 2);
+            if (option.length != 2) {
+                System.err.println("Ignoring argument " + params[i] + ". Optional arguments must have the form name=value");
+                continue;
+            }
+            options.put(option[0].trim(), option[1].trim());
+        }
+
+        canonicalPeasants = Boolean.parseBoolean(options.getOrDefault("canonicalPeasants", "false"));
+        search = options.getOrDefault("search", "astar").toLowerCase();
+        workers = Integer.parseInt(options.getOrDefault("workers", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        tableSize = Integer.parseInt(options.getOrDefault("tableSize", Integer.toString(1 << 20)));
+        nodeBudget = Integer.parseInt(options.getOrDefault("nodeBudget", "200000"));
+        deadline = Long.parseLong(options.getOrDefault("deadline", "1000"));
+        weights = parseWeights(options.getOrDefault("weights", "5,3,2,1.5,1"));
+        parallelChildThreshold = Integer.parseInt(options.getOrDefault("parallelChildren", "0"));
+        harvestCycles = Boolean.parseBoolean(options.getOrDefault("harvestCycles", "false"));
+        segments = Math.max(1, Integer.parseInt(options.getOrDefault("segments", "1")));
+        heuristic = options.getOrDefault("heuristic", "distance").toLowerCase();
+        usePlanCache = Boolean.parseBoolean(options.getOrDefault("planCache", "true"));
+        planCache = new PlanCache(new File("saves"));
+        planPersister = new PlanPersister(4);
 
         System.out.println("required wood: " + requiredWood + " required gold: " + requiredGold + " build Peasants: " + buildPeasants);
+        if (!options.isEmpty()) {
+            System.out.println("options: " + options);
+        }
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
 
-        Stack<StripsAction> plan = AstarSearch(new GameState(stateView, playernum, requiredGold, requiredWood, buildPeasants));
+        GameState startState = new GameState(stateView, playernum, requiredGold, requiredWood, 0, 0, buildPeasants, canonicalPeasants);
+        startState.setParallelChildThreshold(parallelChildThreshold);
+        startState.setHarvestCycles(harvestCycles);
+        startState.setHeuristicFunction(createHeuristic(startState));
+
+        planKey = PlanCache.key(stateView, playernum, requiredGold, requiredWood, buildPeasants, options);
+        if (usePlanCache) {
+            Stack<StripsAction> cachedPlan = planCache.load(planKey, startState);
+            if (cachedPlan != null) {
+                System.out.println("Using the cached plan of " + cachedPlan.size() + " actions");
+                savePlan(cachedPlan, false);
+                peAgent = new PEAgent(playernum, cachedPlan);
+                return peAgent.initialStep(stateView, historyView);
+            }
+        }
+
+        if (segments > 1) {
+            peAgent = new PEAgent(playernum);
+            planInBackground(startState);
+            return peAgent.initialStep(stateView, historyView);
+        }
+
+        Stack<StripsAction> plan = search(startState);
 
         if(plan == null) {
             System.err.println("No plan was found");
@@ -48,7 +154,7 @@ public class PlannerAgent extends Agent {
         }
 
         // write the plan to a text file
-        savePlan(plan);
+        savePlan(plan, usePlanCache);
 
 
         // Instantiates the PEAgent with the specified plan.
@@ -69,7 +175,8 @@ public class PlannerAgent extends Agent {
 
     @Override
     public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
-
+        // make sure the plan is on disk before the episode is over
+        planPersister.flush();
     }
 
     @Override
@@ -82,6 +189,179 @@ public class PlannerAgent extends Agent {
 
     }
 
+    /**
+     * Starts planning the goal a segment at a time on a background thread. Each segment is handed to the PEAgent as soon
+     * as it is found.
+     *
+     * @param startState The state which is being planned from
+     */
+    private void planInBackground(final GameState startState) {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "planner");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    planSegments(startState);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    peAgent.finishPlan();
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * Plans towards an evenly spaced series of intermediate goals, each one starting where the last one ends, and hands
+     * every segment to the PEAgent. The whole plan is saved once the last segment is found.
+     *
+     * Each search looks one segment further ahead than the segment it commits, and only the actions up to this
+     * segment's goal are handed over. Since the PEAgent starts on a segment straight away, its end can never be taken
+     * back, and ending it in a state the next goal cannot be reached from would strand the plan. Planning past it shows
+     * that the next goal can be reached, and if the next search still fails, the rest of this plan is used instead.
+     *
+     * @param startState The state which is being planned from
+     */
+    private void planSegments(GameState startState) {
+        long startTime = System.nanoTime();
+        Stack<StripsAction> fullPlan = new Stack<>();
+        GameState segmentStart = startState;
+        // the actions found by the last search that have not been handed over yet
+        List<StripsAction> remainingActions = new ArrayList<>();
+
+        for (int segment = 1; segment <= segments; segment++) {
+            int gold = segmentTarget(requiredGold, segment);
+            int wood = segmentTarget(requiredWood, segment);
+            if (segmentStart.getCurrentGold() >= gold && segmentStart.getCurrentWood() >= wood) {
+                continue;
+            }
+
+            int lookahead = Math.min(segment + 1, segments);
+            GameState segmentRoot = new GameState(segmentStart, segmentTarget(requiredGold, lookahead), segmentTarget(requiredWood, lookahead));
+            Stack<StripsAction> plan = search(segmentRoot);
+
+            List<StripsAction> actions;
+            if (plan != null && !plan.isEmpty()) {
+                actions = new ArrayList<>(plan);
+            } else if (!remainingActions.isEmpty()) {
+                System.err.println("No plan was found past segment " + segment + ", using the rest of the last plan");
+                actions = remainingActions;
+            } else {
+                System.err.println("No plan was found for segment " + segment + " (" + gold + " gold, " + wood + " wood)");
+                return;
+            }
+
+            // hand over the actions up to the first state that reaches this segment's goal
+            Stack<StripsAction> segmentPlan = new Stack<>();
+            int next = 0;
+            while (next < actions.size() && (segmentStart.getCurrentGold() < gold || segmentStart.getCurrentWood() < wood)) {
+                StripsAction action = actions.get(next++);
+                segmentStart = action.apply(segmentStart);
+                segmentPlan.push(action);
+                fullPlan.push(action);
+            }
+            remainingActions = new ArrayList<>(actions.subList(next, actions.size()));
+
+            peAgent.addPlanSegment(segmentPlan);
+            System.out.println("Segment " + segment + " of " + segments + " ready after "
+                    + (System.nanoTime() - startTime) / 1000000 + "ms");
+        }
+
+        savePlan(fullPlan, usePlanCache);
+    }
+
+    /**
+     * @return The amount of a resource the given segment should end with, rounded up to a whole number of harvests
+     */
+    private int segmentTarget(int required, int segment) {
+        int target = (int) Math.ceil(required * (double) segment / segments / 100) * 100;
+        return Math.min(required, target);
+    }
+
+    /**
+     * Runs the search selected by the search argument.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan or null if no plan is found.
+     */
+    private Stack<StripsAction> search(GameState startState) {
+        switch (search) {
+            case "astar":
+                return AstarSearch(startState);
+            case "hda":
+                System.out.println("Inside HDA* with " + workers + " workers");
+                long startTime = System.nanoTime();
+                Stack<StripsAction> plan = new ParallelAstarSearch(workers).search(startState);
+                System.out.println("HDA* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                return plan;
+            case "ida":
+                System.out.println("Inside IDA*");
+                startTime = System.nanoTime();
+                plan = new IterativeDeepeningSearch(tableSize).search(startState);
+                System.out.println("IDA* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                return plan;
+            case "sma":
+                System.out.println("Inside SMA* with a budget of " + nodeBudget + " nodes");
+                startTime = System.nanoTime();
+                plan = new MemoryBoundedSearch(nodeBudget).search(startState);
+                System.out.println("SMA* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                return plan;
+            case "anytime":
+                System.out.println("Inside anytime A* with weights " + Arrays.toString(weights) + " and a deadline of "
+                        + deadline + "ms");
+                startTime = System.nanoTime();
+                plan = new AnytimeAstarSearch(weights, deadline).search(startState);
+                System.out.println("Anytime A* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                return plan;
+            case "abstract":
+                System.out.println("Inside resource count planner");
+                startTime = System.nanoTime();
+                plan = new ResourceCountPlanner().search(startState);
+                System.out.println("Resource count planner took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                return plan;
+            default:
+                System.err.println("Unknown search " + search + ", using astar");
+                return AstarSearch(startState);
+        }
+    }
+
+    /**
+     * @return The heuristic named by the heuristic option, DistanceHeuristic if it is not recognized
+     */
+    private Heuristic createHeuristic(GameState startState) {
+        switch (heuristic) {
+            case "ff":
+                return new RelaxedPlanHeuristic();
+            case "pdb":
+                return new PatternDatabaseHeuristic(PatternDatabase.load(startState, new File("saves")));
+            case "distance":
+                return new DistanceHeuristic();
+            default:
+                System.err.println("Unknown heuristic " + heuristic + ", using distance");
+                return new DistanceHeuristic();
+        }
+    }
+
+    /**
+     * Parses a comma separated list of weights, such as 5,2,1.
+     */
+    private static double[] parseWeights(String list) {
+        String[] parts = list.split(",");
+        double[] weights = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Double.parseDouble(parts[i].trim());
+        }
+        return weights;
+    }
+
     /**
      * Perform an A* search of the game graph. This should return your plan as a stack of actions. This is essentially
      * the same as your first assignment. The implementations should be very similar. The difference being that your
@@ -94,8 +374,9 @@ public class PlannerAgent extends Agent {
         System.out.println("Inside AStar");
         long startTime = System.nanoTime();
 
-        Queue<GameState> priorityQueue = new PriorityQueue<>();
+        IndexedPriorityQueue<GameState> priorityQueue = new IndexedPriorityQueue<>();
         Set<GameState> closedList = new HashSet<>();
+        long expanded = 0;
 
         priorityQueue.add(startState);
 
@@ -104,17 +385,21 @@ public class PlannerAgent extends Agent {
 
             if (current.isGoal()) {
                 System.out.println("Found goal!");
-                System.out.println("A* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete.");
+                System.out.println("A* took " + (System.nanoTime() - startTime) / 1000000 + "ms to complete and expanded "
+                        + expanded + " states.");
                 return current.getPreviousActions();
             }
 
-            for (GameState neighbor : current.generateChildren()) {
+            expanded += 1;
+
+            for (GameState neighbor : current.children()) {
                 if (closedList.contains(neighbor)) {
                     continue;
                 }
 
-                if (!priorityQueue.contains(neighbor)) {
-                    priorityQueue.add(neighbor);
+                // if the state is already queued, keep whichever copy was reached more cheaply
+                if (!priorityQueue.add(neighbor)) {
+                    priorityQueue.decreaseKey(neighbor);
                 }
             }
 
@@ -133,36 +418,58 @@ public class PlannerAgent extends Agent {
      * move action might have the form of Move(peasantID, X, Y) and when grounded and written to the file
      * Move(1, 10, 15).
      *
+     * The plan is also saved in the binary plan format as plan.bin, see PlanWriter. The files are written on the
+     * PlanPersister's thread, so this returns straight away.
+     *
      * @param plan Stack of Strips Actions that are written to the text file.
+     * @param cache True if the plan should also be stored in the plan cache
      */
-    private void savePlan(Stack<StripsAction> plan) {
+    private void savePlan(Stack<StripsAction> plan, boolean cache) {
         if (plan == null) {
             System.err.println("Cannot save null plan");
             return;
         }
 
+        // the PEAgent works through the plan while it is written, so the writer gets its own copy
+        final List<StripsAction> actions = new ArrayList<>(plan);
+        final boolean storeInCache = cache;
+        final long key = planKey;
+        planPersister.submit(new Runnable() {
+            @Override
+            public void run() {
+                writePlan(actions);
+                if (storeInCache) {
+                    planCache.store(key, actions);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the plan to saves/plan.txt and saves/plan.bin. Runs on the plan writer thread.
+     *
+     * @param plan The plan in the order returned by GameState.getPreviousActions
+     */
+    private static void writePlan(List<StripsAction> plan) {
         File outputDir = new File("saves");
         outputDir.mkdirs();
 
         File outputFile = new File(outputDir, "plan.txt");
 
-        PrintWriter outputWriter = null;
-        try {
-            outputFile.createNewFile();
-
-            outputWriter = new PrintWriter(outputFile.getAbsolutePath());
-
-            Stack<StripsAction> tempPlan = (Stack<StripsAction>) plan.clone();
-            while(!tempPlan.isEmpty()) {
-                outputWriter.println(tempPlan.pop().toString());
+        // the last action is written first, as it always has been
+        try (PrintWriter outputWriter = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)))) {
+            for (int i = plan.size() - 1; i >= 0; i--) {
+                outputWriter.println(plan.get(i).toString());
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if (outputWriter != null)
-                outputWriter.close();
+        }
+
+        // the same plan in the binary format, which PlanLoader can read back
+        try {
+            PlanLoader.save(new File(outputDir, "plan.bin"), plan);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,221 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.BuildPeasantAction;
+import edu.cwru.sepia.agent.planner.actions.StripsAction;
+
+import java.util.*;
+
+/**
+ * The FF heuristic: the cost of a plan for the relaxed problem in which actions have no delete effects. A peasant
+ * that has been somewhere with some cargo stays there with that cargo, and a resource that has been harvested does not
+ * get any smaller.
+ *
+ * The relaxed planning graph is built from the same actions the search uses. Its facts are a peasant with a packed
+ * position and cargo (see Peasant.pack), and the two goal amounts. A peasant fact is expanded by putting the peasant
+ * into a copy of the state as that fact and applying every action GameState.getPeasantActions offers it there, so the
+ * preconditions, the costs and the add effects all come from the actions themselves. Facts are reached cheapest first,
+ * so each one keeps the cheapest action that reached it and the fact that action needed, as in a cost based version of
+ * the graph.
+ *
+ * Gold and wood only ever go up in the relaxed problem. Once some action has deposited a load of a type, repeating it
+ * brings in as much as is needed, so every later fact is expanded as if the goal amount of that type were there. That
+ * is also when the townhall's BuildPeasantAction becomes applicable, and the new peasant's fact is added to the graph
+ * like any other.
+ *
+ * The relaxed plan is read back from each goal amount through the actions that reached it, counting every action once,
+ * plus the depositing action once more for every further load the goal needs. Since the peasant never has to walk back
+ * to the resource or harvest again in the relaxed problem this underestimates large goals by a lot, so A* expands many
+ * more states with it than with DistanceHeuristic.
+ */
+public class RelaxedPlanHeuristic implements Heuristic {
+
+    private static final int TRIP_AMOUNT = 100;
+
+    // the peasant field of a goal amount's fact
+    private static final int GOLD = 1;
+    private static final int WOOD = 2;
+
+    @Override
+    public double estimate(GameState state) {
+        int goldTrips = tripsNeeded(state.getRequiredGold() - state.getCurrentGold());
+        int woodTrips = tripsNeeded(state.getRequiredWood() - state.getCurrentWood());
+        if (goldTrips == 0 && woodTrips == 0) {
+            return 0;
+        }
+
+        RelaxedGraph graph = new RelaxedGraph(state, goldTrips > 0, woodTrips > 0);
+        if (!graph.expand()) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        Set<Fact> relaxedPlan = new HashSet<>();
+        double estimate = 0;
+        if (goldTrips > 0) {
+            estimate += extract(graph.gold, relaxedPlan) + graph.gold.actionCost * (goldTrips - 1);
+        }
+        if (woodTrips > 0) {
+            estimate += extract(graph.wood, relaxedPlan) + graph.wood.actionCost * (woodTrips - 1);
+        }
+        return estimate;
+    }
+
+    private static int tripsNeeded(int amount) {
+        return amount <= 0 ? 0 : (amount + TRIP_AMOUNT - 1) / TRIP_AMOUNT;
+    }
+
+    /**
+     * Adds the actions that reached the goal fact to the relaxed plan, back to the facts that were true in the state.
+     *
+     * @return The cost of the actions that were not in the plan yet
+     */
+    private static double extract(Fact goal, Set<Fact> relaxedPlan) {
+        double cost = 0;
+        for (Fact fact = goal; fact.precondition != null; fact = fact.precondition) {
+            if (!relaxedPlan.add(fact)) {
+                break;
+            }
+            cost += fact.actionCost;
+        }
+        return cost;
+    }
+
+    /**
+     * A fact of the relaxed problem, with the cheapest action that reached it.
+     */
+    private static class Fact implements Comparable<Fact> {
+        // the peasant, or 0 for a goal amount
+        final int peasantID;
+        // the packed peasant, or GOLD or WOOD for a goal amount
+        final int peasant;
+        // the cost of the cheapest relaxed plan that reaches the fact
+        final double cost;
+        // the cost of the action that reached it, and the fact that action needed, or null if the fact was already true
+        final double actionCost;
+        final Fact precondition;
+
+        Fact(int peasantID, int peasant, double actionCost, Fact precondition) {
+            this.peasantID = peasantID;
+            this.peasant = peasant;
+            this.actionCost = actionCost;
+            this.precondition = precondition;
+            this.cost = precondition == null ? 0 : precondition.cost + actionCost;
+        }
+
+        @Override
+        public int compareTo(Fact other) {
+            return Double.compare(cost, other.cost);
+        }
+    }
+
+    /**
+     * The relaxed planning graph from one state, built until the goal amounts that are needed have been reached.
+     */
+    private static class RelaxedGraph {
+
+        private final GameState state;
+        private final boolean needGold;
+        private final boolean needWood;
+
+        private final PriorityQueue<Fact> open = new PriorityQueue<>();
+        private final Map<Long, Fact> reached = new HashMap<>();
+        // the peasants the expanded facts are put among, which gets one more once a peasant can be built
+        private int[] peasants;
+
+        Fact gold;
+        Fact wood;
+
+        RelaxedGraph(GameState state, boolean needGold, boolean needWood) {
+            this.state = state;
+            this.needGold = needGold;
+            this.needWood = needWood;
+            this.peasants = state.getPackedPeasants();
+            for (int i = 0; i < peasants.length; i++) {
+                add(new Fact(i + 1, peasants[i], 0, null));
+            }
+        }
+
+        /**
+         * @return True if every goal amount that is needed was reached
+         */
+        boolean expand() {
+            while (!open.isEmpty() && (needGold && gold == null || needWood && wood == null)) {
+                Fact fact = open.poll();
+                if (fact.peasantID == 0) {
+                    reachGoalAmount(fact);
+                } else if (reached.get(key(fact.peasantID, fact.peasant)) == fact) {
+                    expandPeasant(fact);
+                }
+            }
+            return (!needGold || gold != null) && (!needWood || wood != null);
+        }
+
+        private void expandPeasant(Fact fact) {
+            int[] probePeasants = Arrays.copyOf(peasants, peasants.length);
+            probePeasants[fact.peasantID - 1] = fact.peasant;
+            GameState probe = probe(probePeasants);
+
+            for (StripsAction action : probe.getPeasantActions(fact.peasantID)) {
+                if (!action.preconditionsMet(probe)) {
+                    continue;
+                }
+                GameState child = action.apply(probe);
+                add(new Fact(fact.peasantID, child.getPackedPeasants()[fact.peasantID - 1], action.getCost(), fact));
+                if (child.getCurrentGold() > probe.getCurrentGold()) {
+                    open.add(new Fact(0, GOLD, action.getCost(), fact));
+                }
+                if (child.getCurrentWood() > probe.getCurrentWood()) {
+                    open.add(new Fact(0, WOOD, action.getCost(), fact));
+                }
+            }
+        }
+
+        /**
+         * The first time a goal amount is reached it is reached as cheaply as it can be. Reaching gold also lets the
+         * townhall build a peasant.
+         */
+        private void reachGoalAmount(Fact fact) {
+            if (fact.peasant == WOOD) {
+                if (wood == null) {
+                    wood = fact;
+                }
+                return;
+            }
+            if (gold != null) {
+                return;
+            }
+            gold = fact;
+
+            if (state.isBuildPeasants()) {
+                BuildPeasantAction build = new BuildPeasantAction();
+                GameState probe = probe(peasants);
+                if (build.preconditionsMet(probe)) {
+                    peasants = build.apply(probe).getPackedPeasants();
+                    add(new Fact(build.getNewID(), peasants[build.getNewID() - 1], build.getCost(), fact));
+                }
+            }
+        }
+
+        /**
+         * A copy of the state with the given peasants, and as much of each resource as is needed once a load of it has
+         * been deposited.
+         */
+        private GameState probe(int[] probePeasants) {
+            int probeGold = gold == null ? state.getCurrentGold() : Math.max(state.getCurrentGold(), state.getRequiredGold());
+            int probeWood = wood == null ? state.getCurrentWood() : Math.max(state.getCurrentWood(), state.getRequiredWood());
+            return new GameState(state, state.getResourceHarvests(), probePeasants, probeGold, probeWood, 0, 0, null);
+        }
+
+        private void add(Fact fact) {
+            long key = key(fact.peasantID, fact.peasant);
+            Fact previous = reached.get(key);
+            if (previous == null || fact.cost < previous.cost) {
+                reached.put(key, fact);
+                open.add(fact);
+            }
+        }
+
+        private static long key(int peasantID, int peasant) {
+            return (long) peasantID << 32 | (peasant & 0xffffffffL);
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.agent.planner.actions.*;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+
+import java.util.*;
+
+/**
+ * A two level planner for goals too large to search with peasant positions.
+ *
+ * The top level searches over resource counts only: how many trips have been made for gold and for wood, and how many
+ * peasants have been built. Which resource a trip goes to follows from how many trips of that type came before it,
+ * since trips always use the resource with the shortest round trip that has not run out. A trip costs its round trip
+ * time divided by the number of peasants sharing the work, so the search weighs building a peasant against the trips
+ * it takes to pay for one.
+ *
+ * The scheduler then turns the trips into concrete actions. Each trip goes to the peasant that is free first and
+ * becomes a move, harvest, move and deposit. Each peasant keeps its own tile next to the townhall and avoids the tiles
+ * other peasants are using, so two peasants never have to stand in the same place. Every peasant is timed through its
+ * trips and the actions are emitted in the order they start, grouped into ParallelActions, which is the same form the
+ * other searches return, so the PEAgent runs it as it is. The plan is replayed on the start state before it is
+ * returned, so a schedule that breaks a precondition is never handed out.
+ */
+public class ResourceCountPlanner {
+
+    private static final int MAX_PEASANTS = 3;
+    private static final int PEASANT_COST = 400;
+    private static final int TRIP_AMOUNT = 100;
+
+    private static final int GOLD_TRIP = 0;
+    private static final int WOOD_TRIP = 1;
+    private static final int BUILD = 2;
+
+    private GameState startState;
+    private DistanceOracle distanceOracle;
+    private ResourceTable resourceTable;
+    private Position townhall;
+    private Position spawnPosition;
+
+    // The tile next to the townhall each peasant works from, index is peasant id - 1
+    private List<Position> homeTiles;
+
+    // The resource each possible trip of a type goes to and how long it takes, shortest trips first
+    private int[] goldTrips;
+    private double[] goldTripCosts;
+    private int[] woodTrips;
+    private double[] woodTripCosts;
+
+    private int startGold;
+    private int startWood;
+    private int startPeasants;
+
+    /**
+     * Plans from the given state.
+     *
+     * @param startState The state which is being planned from
+     * @return The plan, or null if there is none
+     */
+    public Stack<StripsAction> search(GameState startState) {
+        this.startState = startState;
+        this.distanceOracle = startState.getDistanceOracle();
+        this.resourceTable = startState.getResourceTable();
+        this.townhall = startState.getTownhall();
+        this.spawnPosition = new Position(townhall.x + 1, townhall.y);
+
+        homeTiles = findHomeTiles();
+        if (homeTiles.isEmpty()) {
+            System.err.println("There is no room next to the townhall");
+            return null;
+        }
+        buildTrips();
+
+        // cargo the peasants are already carrying is deposited first, so count it from the start
+        startGold = startState.getCurrentGold();
+        startWood = startState.getCurrentWood();
+        startPeasants = startState.getPeasantCount();
+        for (int peasant : startState.getPackedPeasants()) {
+            if (Peasant.getResourceType(peasant) == ResourceNode.Type.GOLD_MINE) {
+                startGold += TRIP_AMOUNT;
+            } else if (Peasant.isCarrying(peasant)) {
+                startWood += TRIP_AMOUNT;
+            }
+        }
+
+        List<Integer> steps = searchCounts();
+        if (steps == null) {
+            return null;
+        }
+        System.out.println("Resource count plan: " + steps.size() + " steps");
+
+        Stack<StripsAction> plan = schedule(steps);
+        if (plan != null && !isValid(plan)) {
+            return null;
+        }
+        return plan;
+    }
+
+    /**
+     * Picks a tile next to the townhall for every peasant, closest to a resource first. The tile new peasants appear on
+     * is left out so nobody is standing on it when one is built.
+     */
+    private List<Position> findHomeTiles() {
+        List<Position> tiles = new ArrayList<>();
+        for (Position tile : townhall.getAdjacentPositions()) {
+            if (distanceOracle.isWalkable(tile) && !tile.equals(spawnPosition)) {
+                tiles.add(tile);
+            }
+        }
+        Collections.sort(tiles, new Comparator<Position>() {
+            @Override
+            public int compare(Position a, Position b) {
+                return Integer.compare(nearestResourceDistance(a), nearestResourceDistance(b));
+            }
+        });
+        return tiles;
+    }
+
+    private int nearestResourceDistance(Position tile) {
+        int nearest = Integer.MAX_VALUE;
+        for (int i = 0; i < resourceTable.size(); i++) {
+            nearest = Math.min(nearest, tile.chebyshevDistance(resourceTable.getPosition(i)));
+        }
+        return nearest;
+    }
+
+    private Position homeTile(int peasantID) {
+        return homeTiles.get((peasantID - 1) % homeTiles.size());
+    }
+
+    /**
+     * Lists every trip that can be made to each type of resource, one per harvest left, cheapest first.
+     */
+    private void buildTrips() {
+        List<double[]> gold = new ArrayList<>();
+        List<double[]> wood = new ArrayList<>();
+        short[] harvests = startState.getResourceHarvests();
+        for (int resource = 0; resource < resourceTable.size(); resource++) {
+            Position approach = approachTile(resource, homeTile(1), Collections.<Position>emptySet());
+            if (approach == null) {
+                continue;
+            }
+            double cost = tripCost(homeTile(1), approach, homeTile(1));
+            for (int i = 0; i < harvests[resource]; i++) {
+                (resourceTable.isGold(resource) ? gold : wood).add(new double[] {cost, resource});
+            }
+        }
+
+        Comparator<double[]> byCost = new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        };
+        Collections.sort(gold, byCost);
+        Collections.sort(wood, byCost);
+
+        goldTrips = new int[gold.size()];
+        goldTripCosts = new double[gold.size()];
+        for (int i = 0; i < gold.size(); i++) {
+            goldTripCosts[i] = gold.get(i)[0];
+            goldTrips[i] = (int) gold.get(i)[1];
+        }
+        woodTrips = new int[wood.size()];
+        woodTripCosts = new double[wood.size()];
+        for (int i = 0; i < wood.size(); i++) {
+            woodTripCosts[i] = wood.get(i)[0];
+            woodTrips[i] = (int) wood.get(i)[1];
+        }
+    }
+
+    /**
+     * @return The free tile next to the resource that is closest to the given tile, or null if there is none
+     */
+    private Position approachTile(int resource, Position from, Set<Position> taken) {
+        Position best = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (Position tile : resourceTable.getPosition(resource).getAdjacentPositions()) {
+            if (!distanceOracle.isWalkable(tile) || taken.contains(tile)) {
+                continue;
+            }
+            int cost = distanceOracle.moveCost(from, tile);
+            if (cost < bestCost) {
+                best = tile;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private double tripCost(Position from, Position approach, Position home) {
+        return distanceOracle.moveCost(from, approach) + 1 + distanceOracle.moveCost(approach, home) + 1;
+    }
+
+    /**
+     * A* over (gold trips, wood trips, peasants built).
+     *
+     * @return The steps of the cheapest plan, GOLD_TRIP, WOOD_TRIP or BUILD, or null if the goal cannot be reached
+     */
+    private List<Integer> searchCounts() {
+        double[] goldPrefix = prefixSums(goldTripCosts);
+        double[] woodPrefix = prefixSums(woodTripCosts);
+
+        PriorityQueue<CountNode> openList = new PriorityQueue<>();
+        Map<Long, Double> bestCosts = new HashMap<>();
+
+        CountNode start = new CountNode(0, 0, 0, 0, null, -1);
+        start.estimate = estimate(start, goldPrefix, woodPrefix);
+        openList.add(start);
+        bestCosts.put(start.key(), 0.0);
+
+        while (!openList.isEmpty()) {
+            CountNode node = openList.poll();
+            if (bestCosts.get(node.key()) < node.cost) {
+                continue;
+            }
+
+            int gold = gold(node);
+            int wood = wood(node);
+            if (gold >= startState.getRequiredGold() && wood >= startState.getRequiredWood()) {
+                LinkedList<Integer> steps = new LinkedList<>();
+                for (CountNode step = node; step.parent != null; step = step.parent) {
+                    steps.addFirst(step.step);
+                }
+                return steps;
+            }
+
+            int peasants = startPeasants + node.builds;
+            boolean canBuild = startState.isBuildPeasants() && peasants < MAX_PEASANTS;
+            List<CountNode> children = new ArrayList<>();
+            if (node.goldTrips < goldTrips.length && (gold < startState.getRequiredGold() || canBuild)) {
+                children.add(new CountNode(node.goldTrips + 1, node.woodTrips, node.builds,
+                        node.cost + goldTripCosts[node.goldTrips] / peasants, node, GOLD_TRIP));
+            }
+            if (node.woodTrips < woodTrips.length && wood < startState.getRequiredWood()) {
+                children.add(new CountNode(node.goldTrips, node.woodTrips + 1, node.builds,
+                        node.cost + woodTripCosts[node.woodTrips] / peasants, node, WOOD_TRIP));
+            }
+            if (canBuild && gold >= PEASANT_COST) {
+                children.add(new CountNode(node.goldTrips, node.woodTrips, node.builds + 1, node.cost + 1, node, BUILD));
+            }
+
+            for (CountNode child : children) {
+                Double bestCost = bestCosts.get(child.key());
+                if (bestCost != null && bestCost <= child.cost) {
+                    continue;
+                }
+                bestCosts.put(child.key(), child.cost);
+                child.estimate = child.cost + estimate(child, goldPrefix, woodPrefix);
+                openList.add(child);
+            }
+        }
+
+        System.err.println("There are not enough resources on the map for the goal");
+        return null;
+    }
+
+    /**
+     * The cheapest trips still needed, shared by as many peasants as there could ever be.
+     */
+    private double estimate(CountNode node, double[] goldPrefix, double[] woodPrefix) {
+        int goldNeeded = tripsNeeded(startState.getRequiredGold() - gold(node));
+        int woodNeeded = tripsNeeded(startState.getRequiredWood() - wood(node));
+        int goldEnd = Math.min(goldTrips.length, node.goldTrips + goldNeeded);
+        int woodEnd = Math.min(woodTrips.length, node.woodTrips + woodNeeded);
+        double trips = goldPrefix[goldEnd] - goldPrefix[node.goldTrips] + woodPrefix[woodEnd] - woodPrefix[node.woodTrips];
+        int peasants = startState.isBuildPeasants() ? Math.max(MAX_PEASANTS, startPeasants) : startPeasants;
+        return trips / peasants;
+    }
+
+    private static int tripsNeeded(int amount) {
+        return amount <= 0 ? 0 : (amount + TRIP_AMOUNT - 1) / TRIP_AMOUNT;
+    }
+
+    private static double[] prefixSums(double[] costs) {
+        double[] sums = new double[costs.length + 1];
+        for (int i = 0; i < costs.length; i++) {
+            sums[i + 1] = sums[i] + costs[i];
+        }
+        return sums;
+    }
+
+    private int gold(CountNode node) {
+        return startGold + TRIP_AMOUNT * node.goldTrips - PEASANT_COST * node.builds;
+    }
+
+    private int wood(CountNode node) {
+        return startWood + TRIP_AMOUNT * node.woodTrips;
+    }
+
+    /**
+     * Turns the steps of the resource count plan into timed actions for each peasant.
+     *
+     * @return The plan in the order returned by GameState.getPreviousActions, or null if a peasant is built before
+     * there can be enough gold to pay for it
+     */
+    private Stack<StripsAction> schedule(List<Integer> steps) {
+        List<TimedAction> actions = new ArrayList<>();
+        List<Worker> workers = new ArrayList<>();
+        // when each gold deposit lands, for working out when a peasant can be paid for
+        List<Double> goldDeposits = new ArrayList<>();
+
+        int[] packedPeasants = startState.getPackedPeasants();
+        for (int i = 0; i < packedPeasants.length; i++) {
+            Worker worker = new Worker(i + 1, new Position(Peasant.getX(packedPeasants[i]), Peasant.getY(packedPeasants[i])), 0);
+            workers.add(worker);
+
+            if (Peasant.isCarrying(packedPeasants[i])) {
+                boolean gold = Peasant.getResourceType(packedPeasants[i]) == ResourceNode.Type.GOLD_MINE;
+                double time = returnHome(worker, actions);
+                if (gold) {
+                    goldDeposits.add(time);
+                }
+            }
+        }
+
+        int goldIndex = 0;
+        int woodIndex = 0;
+        int builds = 0;
+        double townhallFree = 0;
+        for (int step : steps) {
+            if (step == BUILD) {
+                double goldReady = goldReadyTime(goldDeposits, builds + 1);
+                if (goldReady == Double.POSITIVE_INFINITY) {
+                    System.err.println("The resource count plan builds a peasant that cannot be paid for");
+                    return null;
+                }
+                double time = Math.max(townhallFree, goldReady);
+                actions.add(new TimedAction(time, actions.size(), new BuildPeasantAction()));
+                townhallFree = time + 1;
+                builds += 1;
+                workers.add(new Worker(workers.size() + 1, spawnPosition, time + 1));
+                continue;
+            }
+
+            int resource = step == GOLD_TRIP ? goldTrips[goldIndex++] : woodTrips[woodIndex++];
+            Worker worker = Collections.min(workers);
+
+            // keep off the tiles the other peasants are standing on or heading to
+            Set<Position> taken = new HashSet<>();
+            for (Worker other : workers) {
+                if (other != worker) {
+                    taken.add(other.position);
+                    taken.add(other.lastApproach);
+                }
+            }
+            Position approach = approachTile(resource, worker.position, taken);
+            if (approach == null) {
+                approach = approachTile(resource, worker.position, Collections.<Position>emptySet());
+            }
+
+            double time = worker.freeAt;
+            if (!worker.position.equals(approach)) {
+                int cost = distanceOracle.moveCost(worker.position, approach);
+                actions.add(new TimedAction(time, actions.size(), new MoveAction(worker.id, worker.position, approach, startState.getxExtent(), startState.getyExtent(), cost)));
+                time += cost;
+            }
+            actions.add(new TimedAction(time, actions.size(), new HarvestAction(worker.id, resource, approach.getDirection(resourceTable.getPosition(resource)))));
+            worker.position = approach;
+            worker.lastApproach = approach;
+            worker.freeAt = time + 1;
+
+            double deposited = returnHome(worker, actions);
+            if (step == GOLD_TRIP) {
+                goldDeposits.add(deposited);
+            }
+        }
+
+        Collections.sort(actions);
+
+        // actions that start together become one ParallelAction
+        Stack<StripsAction> plan = new Stack<>();
+        List<StripsAction> group = new ArrayList<>();
+        double groupTime = Double.NaN;
+        for (TimedAction action : actions) {
+            if (!group.isEmpty() && action.time != groupTime) {
+                plan.push(new ParallelAction(group));
+                group = new ArrayList<>();
+            }
+            group.add(action.action);
+            groupTime = action.time;
+        }
+        if (!group.isEmpty()) {
+            plan.push(new ParallelAction(group));
+        }
+        return plan;
+    }
+
+    /**
+     * Sends a carrying peasant back to its tile next to the townhall and deposits its cargo.
+     *
+     * @return The time the deposit lands
+     */
+    private double returnHome(Worker worker, List<TimedAction> actions) {
+        Position home = homeTile(worker.id);
+        double time = worker.freeAt;
+        if (!worker.position.equals(home)) {
+            int cost = distanceOracle.moveCost(worker.position, home);
+            actions.add(new TimedAction(time, actions.size(), new MoveAction(worker.id, worker.position, home, startState.getxExtent(), startState.getyExtent(), cost)));
+            time += cost;
+        }
+        actions.add(new TimedAction(time, actions.size(), new DepositAction(worker.id, home.getDirection(townhall))));
+        worker.position = home;
+        worker.freeAt = time + 1;
+        return time + 1;
+    }
+
+    /**
+     * @return The time enough gold has landed to have paid for the given number of peasants, 0 if the starting gold
+     * already covers them, or infinity if the deposits so far never add up to enough
+     */
+    private double goldReadyTime(List<Double> goldDeposits, int builds) {
+        int gold = startState.getCurrentGold();
+        if (gold >= PEASANT_COST * builds) {
+            return 0;
+        }
+
+        List<Double> sorted = new ArrayList<>(goldDeposits);
+        Collections.sort(sorted);
+        for (double time : sorted) {
+            gold += TRIP_AMOUNT;
+            if (gold >= PEASANT_COST * builds) {
+                return time;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Replays the plan on the start state, checking every precondition. This also gives each BuildPeasantAction its new
+     * peasant id, which the PEAgent needs.
+     */
+    private boolean isValid(Stack<StripsAction> plan) {
+        GameState state = startState;
+        for (StripsAction action : plan) {
+            GameState next = ((ParallelAction) action).tryApply(state);
+            if (next == null) {
+                System.err.println("The schedule breaks a precondition at " + action);
+                return false;
+            }
+            state = next;
+        }
+        if (!state.isGoal()) {
+            System.err.println("The schedule does not reach the goal");
+            return false;
+        }
+        return true;
+    }
+
+    private static class CountNode implements Comparable<CountNode> {
+        final int goldTrips;
+        final int woodTrips;
+        final int builds;
+        final double cost;
+        final CountNode parent;
+        final int step;
+        double estimate;
+
+        CountNode(int goldTrips, int woodTrips, int builds, double cost, CountNode parent, int step) {
+            this.goldTrips = goldTrips;
+            this.woodTrips = woodTrips;
+            this.builds = builds;
+            this.cost = cost;
+            this.parent = parent;
+            this.step = step;
+        }
+
+        long key() {
+            return ((long) goldTrips << 40) | ((long) woodTrips << 8) | builds;
+        }
+
+        @Override
+        public int compareTo(CountNode o) {
+            return Double.compare(estimate, o.estimate);
+        }
+    }
+
+    private static class Worker implements Comparable<Worker> {
+        final int id;
+        Position position;
+        Position lastApproach;
+        double freeAt;
+
+        Worker(int id, Position position, double freeAt) {
+            this.id = id;
+            this.position = position;
+            this.lastApproach = position;
+            this.freeAt = freeAt;
+        }
+
+        @Override
+        public int compareTo(Worker o) {
+            int result = Double.compare(freeAt, o.freeAt);
+            return result != 0 ? result : Integer.compare(id, o.id);
+        }
+    }
+
+    private static class TimedAction implements Comparable<TimedAction> {
+        final double time;
+        final int order;
+        final StripsAction action;
+
+        TimedAction(double time, int order, StripsAction action) {
+            this.time = time;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(TimedAction o) {
+            int result = Double.compare(time, o.time);
+            return result != 0 ? result : Integer.compare(order, o.order);
+        }
+    }
+}
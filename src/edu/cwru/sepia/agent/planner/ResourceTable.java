@@ -0,0 +1,102 @@
+package edu.cwru.sepia.agent.planner;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of the map's resources that never change during planning: where each gold mine and tree is and what type
+ * it is. The table is built once from the initial StateView and shared by every GameState in the search, so a state
+ * only has to store how much is left at each index.
+ *
+ * Gold mines come before trees, so the gold mines are indices [0, getGoldCount()) and the trees are the rest.
+ */
+public class ResourceTable {
+
+    private final Position[] positions;
+    private final ResourceNode.Type[] types;
+    private final int[] initialAmounts;
+    private final int goldCount;
+
+    /**
+     * Builds the table from every gold mine and tree in the state.
+     *
+     * @param state The stateview the search starts from
+     */
+    public ResourceTable(State.StateView state) {
+        List<ResourceNode.ResourceView> gold = new ArrayList<>();
+        List<ResourceNode.ResourceView> trees = new ArrayList<>();
+        for (ResourceNode.ResourceView resource : state.getAllResourceNodes()) {
+            if (resource.getType().equals(ResourceNode.Type.GOLD_MINE)) {
+                gold.add(resource);
+            } else if (resource.getType().equals(ResourceNode.Type.TREE)) {
+                trees.add(resource);
+            }
+        }
+
+        List<ResourceNode.ResourceView> resources = new ArrayList<>(gold);
+        resources.addAll(trees);
+
+        this.goldCount = gold.size();
+        this.positions = new Position[resources.size()];
+        this.types = new ResourceNode.Type[resources.size()];
+        this.initialAmounts = new int[resources.size()];
+        for (int i = 0; i < resources.size(); i++) {
+            ResourceNode.ResourceView resource = resources.get(i);
+            positions[i] = new Position(resource.getXPosition(), resource.getYPosition());
+            types[i] = resource.getType();
+            initialAmounts[i] = resource.getAmountRemaining();
+        }
+    }
+
+    /**
+     * Each harvest takes 100 of a resource, so the number of harvests left is the amount divided by 100, rounded up.
+     * A resource with 50 left can still be harvested once.
+     *
+     * @return The number of harvests left at each resource when the table was built
+     */
+    public short[] getInitialHarvests() {
+        short[] harvests = new short[initialAmounts.length];
+        for (int i = 0; i < initialAmounts.length; i++) {
+            harvests[i] = (short) Math.min(Short.MAX_VALUE, (initialAmounts[i] + 99) / 100);
+        }
+        return harvests;
+    }
+
+    /**
+     * Finds the resource at the given position.
+     *
+     * @param position The position of the resource
+     * @return The index of the resource, -1 if there is none
+     */
+    public int indexOf(Position position) {
+        for (int i = 0; i < positions.length; i++) {
+            if (positions[i].equals(position)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return positions.length;
+    }
+
+    public int getGoldCount() {
+        return goldCount;
+    }
+
+    public Position getPosition(int index) {
+        return positions[index];
+    }
+
+    public ResourceNode.Type getType(int index) {
+        return types[index];
+    }
+
+    public boolean isGold(int index) {
+        return index < goldCount;
+    }
+}
@@ -0,0 +1,79 @@
+package edu.cwru.sepia.agent.planner;
+
+/**
+ * Zobrist keys for the parts of a GameState. A state's hash is the sum of the keys of its peasants, its resources and
+ * its gold and wood totals, so an action can update the hash in O(1) by subtracting the key of each part it changes
+ * and adding the key of the replacement (see replace).
+ *
+ * The keys are summed rather than XORed because in canonical peasant mode interchangeable peasants share keys, and two
+ * peasants with the same position and cargo would cancel each other out under XOR.
+ *
+ * Instead of a table of random numbers, each key is produced by mixing the part's fields with a fixed salt. This acts
+ * like a random table that covers every position and amount without having to know the map size up front, and it
+ * gives the same hash for the same state on every run.
+ */
+public final class Zobrist {
+
+    private static final long PEASANT_SALT = 0x9E3779B97F4A7C15L;
+    private static final long RESOURCE_SALT = 0xC2B2AE3D27D4EB4FL;
+    private static final long GOLD_SALT = 0x165667B19E3779F9L;
+    private static final long WOOD_SALT = 0x27D4EB2F165667C5L;
+
+    private Zobrist() {
+    }
+
+    /**
+     * Swaps one key in a hash for another.
+     *
+     * @param hash The hash containing oldKey
+     * @param oldKey The key of the part being replaced
+     * @param newKey The key of its replacement
+     * @return The updated hash
+     */
+    public static long replace(long hash, long oldKey, long newKey) {
+        return hash - oldKey + newKey;
+    }
+
+    /**
+     * @param id The id of the peasant, or 0 to get a key shared by every peasant with the same position and cargo
+     * @param packed The packed peasant, see Peasant.pack
+     * @return The key for the peasant's id, position and cargo
+     */
+    public static long peasant(int id, int packed) {
+        return mix(PEASANT_SALT ^ ((long) id << 32) ^ (packed & 0xFFFFFFFFL));
+    }
+
+    /**
+     * @param index The resource's index in the ResourceTable
+     * @param harvests The number of harvests left at the resource
+     * @return The key for the resource's remaining amount
+     */
+    public static long resource(int index, int harvests) {
+        return mix(RESOURCE_SALT ^ ((long) index << 32) ^ harvests);
+    }
+
+    /**
+     * @param amount The player's gold
+     * @return The key for the gold total
+     */
+    public static long gold(int amount) {
+        return mix(GOLD_SALT + amount);
+    }
+
+    /**
+     * @param amount The player's wood
+     * @return The key for the wood total
+     */
+    public static long wood(int amount) {
+        return mix(WOOD_SALT + amount);
+    }
+
+    /**
+     * The splitmix64 finalizer. Every input bit affects every output bit, so nearby inputs get unrelated keys.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -2,11 +2,9 @@ package edu.cwru.sepia.agent.planner.actions;
 
 import edu.cwru.sepia.agent.planner.GameState;
 import edu.cwru.sepia.agent.planner.Peasant;
-import edu.cwru.sepia.agent.planner.Position;
+import edu.cwru.sepia.agent.planner.Zobrist;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.util.Arrays;
 
 /**
  * Created by jamesflinn on 3/29/16.
@@ -23,7 +21,7 @@ public class BuildPeasantAction implements StripsAction {
      */
     @Override
     public boolean preconditionsMet(GameState state) {
-        return state.getCurrentGold() >= 400 && state.getPeasantsMap().size() < 3;
+        return state.getCurrentGold() >= 400 && state.getPeasantCount() < 3;
     }
 
     /**
@@ -34,17 +32,26 @@ public class BuildPeasantAction implements StripsAction {
      */
     @Override
     public GameState apply(GameState state) {
-        newID = state.getPeasantsMap().size() + 1;
-        Position newPosition = new Position(state.getTownhall().x + 1, state.getTownhall().y);
-        Peasant newPeasant = new Peasant(newID, newPosition);
+        newID = state.getPeasantCount() + 1;
+        int newPeasant = Peasant.pack(state.getTownhall().x + 1, state.getTownhall().y, null);
 
-        Map<Integer, Peasant> newPeasantMap = new HashMap<>(state.getPeasantsMap());
-        newPeasantMap.put(newID, newPeasant);
+        int[] newPeasants = Arrays.copyOf(state.getPackedPeasants(), newID);
+        newPeasants[newID - 1] = newPeasant;
 
-        Stack<StripsAction> actions = (Stack<StripsAction>) state.getPreviousActions().clone();
-        actions.push(this);
+        int newGoldAmount = state.getCurrentGold() - 400;
+        long hash = state.getZobristHash() + state.peasantKey(newID, newPeasant);
+        hash = Zobrist.replace(hash, Zobrist.gold(state.getCurrentGold()), Zobrist.gold(newGoldAmount));
 
-        return new GameState(state, state.getGoldLocations(), state.getTreeLocations(), newPeasantMap, state.getCurrentGold() - 400, state.getCurrentWood(), actions);
+        return new GameState(state, state.getResourceHarvests(), newPeasants, newGoldAmount, state.getCurrentWood(), state.getCost() + getCost(), hash, this);
+    }
+
+    /**
+     * Building a peasant takes a single turn.
+     * @return 1
+     */
+    @Override
+    public double getCost() {
+        return 1;
     }
 
     public int getNewID() {
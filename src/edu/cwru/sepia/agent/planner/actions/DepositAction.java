@@ -2,14 +2,11 @@ package edu.cwru.sepia.agent.planner.actions;
 
 import edu.cwru.sepia.agent.planner.GameState;
 import edu.cwru.sepia.agent.planner.Peasant;
+import edu.cwru.sepia.agent.planner.Position;
+import edu.cwru.sepia.agent.planner.Zobrist;
 import edu.cwru.sepia.environment.model.state.ResourceNode;
 import edu.cwru.sepia.util.Direction;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
-
 /**
  * Represents the Deposit action.
  */
@@ -22,6 +19,14 @@ public class DepositAction implements StripsAction {
         this.peasantID = peasantID;
     }
 
+    /**
+     * Creates a deposit whose direction is already known, for building the steps of a HarvestCycleAction.
+     */
+    public DepositAction(int peasantID, Direction townhallDirection) {
+        this.peasantID = peasantID;
+        this.townhallDirection = townhallDirection;
+    }
+
     /**
      * Preconditions are met if the peasant is next to the town hall and it is carrying a resource.
      * @param state GameState to check if action is applicable
@@ -29,8 +34,10 @@ public class DepositAction implements StripsAction {
      */
     @Override
     public boolean preconditionsMet(GameState state) {
-        Peasant peasant = state.getPeasant(peasantID);
-        return peasant.getPosition().isAdjacent(state.getTownhall()) && peasant.isCarrying();
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        return Peasant.isCarrying(peasant) &&
+                Math.abs(Peasant.getX(peasant) - state.getTownhall().x) <= 1 &&
+                Math.abs(Peasant.getY(peasant) - state.getTownhall().y) <= 1;
     }
 
     /**
@@ -41,26 +48,35 @@ public class DepositAction implements StripsAction {
      */
     @Override
     public GameState apply(GameState state) {
-        Peasant peasant = state.getPeasant(peasantID);
-        Peasant newPeasant = new Peasant(peasantID, peasant.getPosition());
-        townhallDirection = peasant.getPosition().getDirection(state.getTownhall());
+        int[] newPeasants = state.getPackedPeasants().clone();
+        int peasant = newPeasants[peasantID - 1];
+        int newPeasant = Peasant.withCargo(peasant, null);
+        newPeasants[peasantID - 1] = newPeasant;
+        townhallDirection = new Position(Peasant.getX(peasant), Peasant.getY(peasant)).getDirection(state.getTownhall());
 
         int newGoldAmount = state.getCurrentGold();
         int newWoodAmount = state.getCurrentWood();
 
-        if (peasant.getResourceType() == ResourceNode.Type.GOLD_MINE) {
+        if (Peasant.getResourceType(peasant) == ResourceNode.Type.GOLD_MINE) {
             newGoldAmount += 100;
         } else {
             newWoodAmount += 100;
         }
 
-        Map<Integer, Peasant> newPeasantMap = new HashMap<>(state.getPeasantsMap());
-        newPeasantMap.put(peasantID, newPeasant);
+        long hash = Zobrist.replace(state.getZobristHash(), state.peasantKey(peasantID, peasant), state.peasantKey(peasantID, newPeasant));
+        hash = Zobrist.replace(hash, Zobrist.gold(state.getCurrentGold()), Zobrist.gold(newGoldAmount));
+        hash = Zobrist.replace(hash, Zobrist.wood(state.getCurrentWood()), Zobrist.wood(newWoodAmount));
 
-        Stack<StripsAction> actions = (Stack<StripsAction>) state.getPreviousActions().clone();
-        actions.push(this);
+        return new GameState(state, state.getResourceHarvests(), newPeasants, newGoldAmount, newWoodAmount, state.getCost() + getCost(), hash, this);
+    }
 
-        return new GameState(state, state.getGoldLocations(), state.getTreeLocations(), newPeasantMap, newGoldAmount, newWoodAmount, actions);
+    /**
+     * Depositing takes a single turn.
+     * @return 1
+     */
+    @Override
+    public double getCost() {
+        return 1;
     }
 
     public int getPeasantID() {
@@ -3,35 +3,68 @@ package edu.cwru.sepia.agent.planner.actions;
 import edu.cwru.sepia.agent.planner.GameState;
 import edu.cwru.sepia.agent.planner.Peasant;
 import edu.cwru.sepia.agent.planner.Position;
-import edu.cwru.sepia.agent.planner.ResourceLocation;
-import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.agent.planner.ResourceTable;
+import edu.cwru.sepia.agent.planner.Zobrist;
 import edu.cwru.sepia.util.Direction;
 
-import java.util.*;
-
 /**
  * Represents the HarvestWood action.
  */
 public class HarvestAction implements StripsAction {
 
     private int peasantID;
+    private int resourceIndex;
     private Direction resourceDirection;
 
-    public HarvestAction(int peasantID) {
+    /**
+     * Creates a harvest of the resource next to the peasant in the given state. The resource is picked here rather than
+     * in apply, so the action always harvests the same resource and never changes after it is built. This lets one
+     * action be shared by several joint actions, even ones applied on different threads.
+     *
+     * @param peasantID The peasant doing the harvesting
+     * @param state The state the action is created for
+     */
+    public HarvestAction(int peasantID, GameState state) {
         this.peasantID = peasantID;
+
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        this.resourceIndex = findAdjResource(peasant, state);
+        if (resourceIndex != -1) {
+            Position resourcePosition = state.getResourceTable().getPosition(resourceIndex);
+            this.resourceDirection = new Position(Peasant.getX(peasant), Peasant.getY(peasant)).getDirection(resourcePosition);
+        }
     }
 
     /**
-     * Preconditions are met if the peasant is adjacent to a resource, if that resource has an amount > 0,
+     * Creates a harvest of a known resource, for building the steps of a HarvestCycleAction.
+     *
+     * @param peasantID The peasant doing the harvesting
+     * @param resourceIndex The index of the resource in the resource table
+     * @param resourceDirection The direction of the resource from where the peasant will be standing
+     */
+    public HarvestAction(int peasantID, int resourceIndex, Direction resourceDirection) {
+        this.peasantID = peasantID;
+        this.resourceIndex = resourceIndex;
+        this.resourceDirection = resourceDirection;
+    }
+
+    /**
+     * Preconditions are met if the peasant is adjacent to its resource, if that resource has an amount > 0,
      * and if the peasant is not already carrying anything.
      * @param state GameState to check if action is applicable
      * @return true if preconditions are met
      */
     @Override
     public boolean preconditionsMet(GameState state) {
-        Peasant peasant = state.getPeasant(peasantID);
-        ResourceLocation adjResource = findAdjResource(peasant, state.getGoldLocations(), state.getTreeLocations());
-        return adjResource != null && adjResource.getAmount() > 0 && !peasant.isCarrying();
+        if (resourceIndex == -1 || state.getResourceHarvests()[resourceIndex] == 0) {
+            return false;
+        }
+
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        Position resourcePosition = state.getResourceTable().getPosition(resourceIndex);
+        return !Peasant.isCarrying(peasant) &&
+                Math.abs(resourcePosition.x - Peasant.getX(peasant)) <= 1 &&
+                Math.abs(resourcePosition.y - Peasant.getY(peasant)) <= 1;
     }
 
     /**
@@ -42,75 +75,59 @@ public class HarvestAction implements StripsAction {
      */
     @Override
     public GameState apply(GameState state) {
-        Peasant oldPeasant = state.getPeasant(peasantID);
-        ResourceLocation adjResource = findAdjResource(oldPeasant, state.getGoldLocations(), state.getTreeLocations());
-        resourceDirection = oldPeasant.getPosition().getDirection(adjResource.getPosition());
-        Peasant newPeasant = new Peasant(peasantID, oldPeasant.getPosition(), adjResource.getResourceType());
-
-        List<ResourceLocation> newGoldLocations = new ArrayList<>(state.getGoldLocations());
-        List<ResourceLocation> newTreeLocations = new ArrayList<>(state.getTreeLocations());
-
-        if (adjResource.getResourceType() == ResourceNode.Type.GOLD_MINE) {
-            addNewResourceToList(newGoldLocations, adjResource);
-        } else {
-            addNewResourceToList(newTreeLocations, adjResource);
-        }
+        int[] newPeasants = state.getPackedPeasants().clone();
+        int oldPeasant = newPeasants[peasantID - 1];
+        int newPeasant = Peasant.withCargo(oldPeasant, state.getResourceTable().getType(resourceIndex));
+        newPeasants[peasantID - 1] = newPeasant;
 
-            Map<Integer, Peasant> newPeasantMap = new HashMap<>(state.getPeasantsMap());
-            newPeasantMap.put(peasantID, newPeasant);
+        short[] newResourceHarvests = state.getResourceHarvests().clone();
+        newResourceHarvests[resourceIndex] -= 1;
 
-        Stack<StripsAction> actions = (Stack<StripsAction>) state.getPreviousActions().clone();
-        actions.push(this);
+        long hash = Zobrist.replace(state.getZobristHash(), state.peasantKey(peasantID, oldPeasant), state.peasantKey(peasantID, newPeasant));
+        hash = Zobrist.replace(hash, Zobrist.resource(resourceIndex, state.getResourceHarvests()[resourceIndex]), Zobrist.resource(resourceIndex, newResourceHarvests[resourceIndex]));
 
-        return new GameState(state, newGoldLocations, newTreeLocations, newPeasantMap, state.getCurrentGold(), state.getCurrentWood(), actions);
+        return new GameState(state, newResourceHarvests, newPeasants, state.getCurrentGold(), state.getCurrentWood(), state.getCost() + getCost(), hash, this);
     }
 
     /**
-     * Adds a new resource to the list, with 100 less resources. If there are no more resources, it is deleted from the list.
-     * @param resources The list to be changed
-     * @param resource The resource to be changed
-     * @return A new list
+     * Finds the resource that is adjacent to the given peasant and has not run out. Gold mines are checked first.
+     * @param peasant The packed peasant
+     * @param state The state the peasant is in
+     * @return The index of the adjacent resource in the resource table, -1 if there is no such resource
      */
-    private List<ResourceLocation> addNewResourceToList(List<ResourceLocation> resources, ResourceLocation resource) {
-        if (resource.getAmount() - 100 > 0) {
-            resources.set(
-                    resources.indexOf(resource),
-                    new ResourceLocation(resource.getPosition(), resource.getResourceType(), resource.getAmount() - 100)
-            );
-        } else {
-            resources.remove(resource);
+    private static int findAdjResource(int peasant, GameState state) {
+        ResourceTable resourceTable = state.getResourceTable();
+        short[] resourceHarvests = state.getResourceHarvests();
+        int x = Peasant.getX(peasant);
+        int y = Peasant.getY(peasant);
+
+        for (int i = 0; i < resourceTable.size(); i++) {
+            Position position = resourceTable.getPosition(i);
+            if (resourceHarvests[i] > 0 && Math.abs(position.x - x) <= 1 && Math.abs(position.y - y) <= 1) {
+                return i;
+            }
         }
-
-        return resources;
+        // no adjacent resource found
+        return -1;
     }
 
     /**
-     * Finds the resource that is adjacent to the given peasant. Null if there is no such resource.
-     * @param peasant The specified peasant
-     * @param goldLocations The locations of gold mines
-     * @param treeLocations The locations of forests
-     * @return The adjacent resource, null if there is no such resource
+     * Harvesting takes a single turn.
+     * @return 1
      */
-    private ResourceLocation findAdjResource(Peasant peasant, List<ResourceLocation> goldLocations, List<ResourceLocation> treeLocations) {
-        for (ResourceLocation gold : goldLocations) {
-            if (peasant.getPosition().isAdjacent(gold.getPosition())) {
-                return gold;
-            }
-        }
-
-        for (ResourceLocation tree : treeLocations) {
-            if (peasant.getPosition().isAdjacent(tree.getPosition())) {
-                return tree;
-            }
-        }
-        // no adjacent resource found
-        return null;
+    @Override
+    public double getCost() {
+        return 1;
     }
 
     public int getPeasantID() {
         return peasantID;
     }
 
+    public int getResourceIndex() {
+        return resourceIndex;
+    }
+
     public Direction getResourceDirection() {
         return resourceDirection;
     }
@@ -0,0 +1,149 @@
+package edu.cwru.sepia.agent.planner.actions;
+
+import edu.cwru.sepia.agent.planner.DistanceOracle;
+import edu.cwru.sepia.agent.planner.GameState;
+import edu.cwru.sepia.agent.planner.Peasant;
+import edu.cwru.sepia.agent.planner.Position;
+import edu.cwru.sepia.agent.planner.ResourceTable;
+import edu.cwru.sepia.agent.planner.Zobrist;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A whole round trip to a resource as one action: move from the townhall to the resource, harvest it, move back and
+ * deposit. Almost every plan is this chain over and over, so searching it as one step makes plans about four times
+ * shallower. The PEAgent expands it back into the four primitive actions (see getActions).
+ *
+ * Like HarvestAction the positions and directions are worked out when the action is built, so it never changes after.
+ */
+public class HarvestCycleAction implements StripsAction {
+
+    private int peasantID;
+    private int resourceIndex;
+
+    private Position startPosition;
+    private Position resourcePosition;
+    private Position townhallPosition;
+
+    private int xExtent;
+    private int yExtent;
+
+    private MoveAction moveToResource;
+    private HarvestAction harvest;
+    private MoveAction moveToTownhall;
+    private DepositAction deposit;
+
+    /**
+     * @param peasantID The peasant doing the round trip, it must be next to the townhall and not carrying anything
+     * @param resourceIndex The index of the resource to harvest in the resource table
+     * @param state The state the action is created for
+     */
+    public HarvestCycleAction(int peasantID, int resourceIndex, GameState state) {
+        this.peasantID = peasantID;
+        this.resourceIndex = resourceIndex;
+        this.xExtent = state.getxExtent();
+        this.yExtent = state.getyExtent();
+
+        DistanceOracle distanceOracle = state.getDistanceOracle();
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        Position resource = state.getResourceTable().getPosition(resourceIndex);
+
+        this.startPosition = new Position(Peasant.getX(peasant), Peasant.getY(peasant));
+        this.resourcePosition = distanceOracle.resourceApproach(startPosition, resourceIndex);
+        this.townhallPosition = distanceOracle.townhallApproach(resourcePosition);
+
+        this.moveToResource = new MoveAction(peasantID, startPosition, resourcePosition, xExtent, yExtent, distanceOracle.moveCost(startPosition, resourcePosition));
+        this.harvest = new HarvestAction(peasantID, resourceIndex, resourcePosition.getDirection(resource));
+        this.moveToTownhall = new MoveAction(peasantID, resourcePosition, townhallPosition, xExtent, yExtent, distanceOracle.moveCost(resourcePosition, townhallPosition));
+        this.deposit = new DepositAction(peasantID, townhallPosition.getDirection(state.getTownhall()));
+    }
+
+    /**
+     * Preconditions are met if the peasant is where the action was built for and not carrying anything, the resource
+     * has something left, and both stops on the way are on the map.
+     * @param state GameState to check if action is applicable
+     * @return true if preconditions are met
+     */
+    @Override
+    public boolean preconditionsMet(GameState state) {
+        if (state.getResourceHarvests()[resourceIndex] == 0) {
+            return false;
+        }
+        if (!resourcePosition.inBounds(xExtent, yExtent) || !townhallPosition.inBounds(xExtent, yExtent)) {
+            return false;
+        }
+
+        int peasant = state.getPackedPeasants()[peasantID - 1];
+        return !Peasant.isCarrying(peasant) &&
+                Peasant.getX(peasant) == startPosition.x &&
+                Peasant.getY(peasant) == startPosition.y;
+    }
+
+    /**
+     * Returns a new GameState such that the peasant is back next to the townhall, the resource has one harvest less
+     * and the player has 100 more of it.
+     * @param state State to apply action to
+     * @return the new GameState
+     */
+    @Override
+    public GameState apply(GameState state) {
+        ResourceTable resourceTable = state.getResourceTable();
+
+        int[] newPeasants = state.getPackedPeasants().clone();
+        int oldPeasant = newPeasants[peasantID - 1];
+        int newPeasant = Peasant.withPosition(oldPeasant, townhallPosition.x, townhallPosition.y);
+        newPeasants[peasantID - 1] = newPeasant;
+
+        short[] newResourceHarvests = state.getResourceHarvests().clone();
+        newResourceHarvests[resourceIndex] -= 1;
+
+        int newGoldAmount = state.getCurrentGold();
+        int newWoodAmount = state.getCurrentWood();
+        if (resourceTable.isGold(resourceIndex)) {
+            newGoldAmount += 100;
+        } else {
+            newWoodAmount += 100;
+        }
+
+        long hash = Zobrist.replace(state.getZobristHash(), state.peasantKey(peasantID, oldPeasant), state.peasantKey(peasantID, newPeasant));
+        hash = Zobrist.replace(hash, Zobrist.resource(resourceIndex, state.getResourceHarvests()[resourceIndex]), Zobrist.resource(resourceIndex, newResourceHarvests[resourceIndex]));
+        hash = Zobrist.replace(hash, Zobrist.gold(state.getCurrentGold()), Zobrist.gold(newGoldAmount));
+        hash = Zobrist.replace(hash, Zobrist.wood(state.getCurrentWood()), Zobrist.wood(newWoodAmount));
+
+        return new GameState(state, newResourceHarvests, newPeasants, newGoldAmount, newWoodAmount, state.getCost() + getCost(), hash, this);
+    }
+
+    /**
+     * The round trip takes as long as its four steps one after the other.
+     * @return the total duration of the round trip
+     */
+    @Override
+    public double getCost() {
+        return moveToResource.getCost() + harvest.getCost() + moveToTownhall.getCost() + deposit.getCost();
+    }
+
+    /**
+     * @return The primitive actions that make up the round trip, in the order they are executed
+     */
+    public List<StripsAction> getActions() {
+        return Arrays.asList(moveToResource, harvest, moveToTownhall, deposit);
+    }
+
+    public int getPeasantID() {
+        return peasantID;
+    }
+
+    public int getResourceIndex() {
+        return resourceIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "HarvestCycleAction{" +
+                "peasantID=" + peasantID +
+                ", resourcePosition=" + resourcePosition +
+                ", townhallPosition=" + townhallPosition +
+                '}';
+    }
+}
@@ -3,10 +3,7 @@ package edu.cwru.sepia.agent.planner.actions;
 import edu.cwru.sepia.agent.planner.GameState;
 import edu.cwru.sepia.agent.planner.Peasant;
 import edu.cwru.sepia.agent.planner.Position;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import edu.cwru.sepia.agent.planner.Zobrist;
 
 /**
  * Represents the Move action.
@@ -20,12 +17,25 @@ public class MoveAction implements StripsAction {
     private int xExtent;
     private int yExtent;
 
+    private int cost;
+
+    /**
+     * Creates a move that is assumed to have nothing in its way, so it costs the Chebyshev distance.
+     */
     public MoveAction(int peasantID, Position currentPosition, Position targetPosition, int xExtent, int yExtent) {
+        this(peasantID, currentPosition, targetPosition, xExtent, yExtent, currentPosition.chebyshevDistance(targetPosition));
+    }
+
+    /**
+     * @param cost The number of steps the move takes, see DistanceOracle.moveCost
+     */
+    public MoveAction(int peasantID, Position currentPosition, Position targetPosition, int xExtent, int yExtent, int cost) {
         this.peasantID = peasantID;
         this.currentPosition = currentPosition;
         this.targetPosition = targetPosition;
         this.xExtent = xExtent;
         this.yExtent = yExtent;
+        this.cost = cost;
     }
 
     /**
@@ -36,9 +46,18 @@ public class MoveAction implements StripsAction {
      */
     @Override
     public boolean preconditionsMet(GameState state) {
-        Peasant peasant = state.getPeasant(peasantID);
-        return targetPosition.inBounds(xExtent, yExtent) &&
-                !state.getPeasantsMap().values().stream().anyMatch(p -> !p.equals(peasant) && p.getPosition().equals(peasant.getPosition()));
+        if (!targetPosition.inBounds(xExtent, yExtent)) {
+            return false;
+        }
+
+        int[] peasants = state.getPackedPeasants();
+        int peasant = peasants[peasantID - 1];
+        for (int i = 0; i < peasants.length; i++) {
+            if (i != peasantID - 1 && Peasant.samePosition(peasants[i], peasant)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -48,21 +67,23 @@ public class MoveAction implements StripsAction {
      */
     @Override
     public GameState apply(GameState state) {
-        Peasant peasant = state.getPeasant(peasantID);
-        Peasant newPeasant;
-        if (peasant.isCarrying()) {
-            newPeasant = new Peasant(peasantID, targetPosition, peasant.getResourceType());
-        } else {
-            newPeasant = new Peasant(peasantID, targetPosition);
-        }
+        int[] newPeasants = state.getPackedPeasants().clone();
+        int peasant = newPeasants[peasantID - 1];
+        int newPeasant = Peasant.withPosition(peasant, targetPosition.x, targetPosition.y);
+        newPeasants[peasantID - 1] = newPeasant;
 
-        Map<Integer, Peasant> newPeasantMap = new HashMap<>(state.getPeasantsMap());
-        newPeasantMap.put(peasantID, newPeasant);
+        long hash = Zobrist.replace(state.getZobristHash(), state.peasantKey(peasantID, peasant), state.peasantKey(peasantID, newPeasant));
 
-        Stack<StripsAction> actions = (Stack<StripsAction>) state.getPreviousActions().clone();
-        actions.push(this);
+        return new GameState(state, state.getResourceHarvests(), newPeasants, state.getCurrentGold(), state.getCurrentWood(), state.getCost() + getCost(), hash, this);
+    }
 
-        return new GameState(state, state.getGoldLocations(), state.getTreeLocations(), newPeasantMap, state.getCurrentGold(), state.getCurrentWood(), actions);
+    /**
+     * A compound move takes one turn per step, so the cost is the length of the path the peasant walks.
+     * @return the number of steps in the move
+     */
+    @Override
+    public double getCost() {
+        return cost;
     }
 
     public int getPeasantID() {
@@ -3,7 +3,6 @@ package edu.cwru.sepia.agent.planner.actions;
 import edu.cwru.sepia.agent.planner.GameState;
 
 import java.util.List;
-import java.util.Stack;
 
 /**
  * Represents a parallel action.
@@ -18,22 +17,27 @@ public class ParallelAction implements StripsAction {
     }
 
     /**
-     * The preconditions of each action must be met.
+     * The preconditions of each action must be met. Each action is checked against the state left by the actions
+     * before it, so two peasants cannot both take the last harvest from a resource.
      *
      * @param state GameState to check if action is applicable
      * @return true if every action's preconditions are met
      */
     @Override
     public boolean preconditionsMet(GameState state) {
-        GameState newState = state;
-        for (StripsAction action : actions) {
-            if (action.preconditionsMet(newState)) {
-                newState = action.apply(newState);
-            } else {
-                return false;
-            }
-        }
-        return true;
+        return applyActions(state) != null;
+    }
+
+    /**
+     * Checks the preconditions and applies the action in one pass, which is cheaper than calling preconditionsMet and
+     * then apply.
+     *
+     * @param state State to apply action to
+     * @return The new GameState, or null if the preconditions are not met
+     */
+    public GameState tryApply(GameState state) {
+        GameState result = applyActions(state);
+        return result == null ? null : applyResult(state, result);
     }
 
     /**
@@ -44,18 +48,52 @@ public class ParallelAction implements StripsAction {
      */
     @Override
     public GameState apply(GameState state) {
+        return applyResult(state, applyActions(state));
+    }
+
+    /**
+     * Builds this action's child of the given state from the state its actions ended in. The intermediate states are
+     * dropped and the child hangs directly off the original state.
+     *
+     * @param state The state this action was applied to
+     * @param result The state after every action has been applied
+     * @return The child of state reached by this action
+     */
+    public GameState applyResult(GameState state, GameState result) {
+        return new GameState(state, result.getResourceHarvests(), result.getPackedPeasants(), result.getCurrentGold(), result.getCurrentWood(), state.getCost() + getCost(), result.getZobristHash(), this);
+    }
+
+    /**
+     * Applies the actions in order, checking each one's preconditions first.
+     *
+     * @param state State to apply the actions to
+     * @return The state after the last action, or null if some action's preconditions are not met
+     */
+    private GameState applyActions(GameState state) {
         GameState newState = state;
         for (StripsAction action : actions) {
+            if (!action.preconditionsMet(newState)) {
+                return null;
+            }
             newState = action.apply(newState);
         }
-
-        Stack<StripsAction> actions = (Stack<StripsAction>) state.getPreviousActions().clone();
-        actions.push(this);
-
-        newState = new GameState(newState, newState.getGoldLocations(), newState.getTreeLocations(), newState.getPeasantsMap(), newState.getCurrentGold(), newState.getCurrentWood(), actions);
         return newState;
     }
 
+    /**
+     * The actions run at the same time, so the parallel action takes as long as its longest action.
+     *
+     * @return The cost of the most expensive action
+     */
+    @Override
+    public double getCost() {
+        double cost = 0;
+        for (StripsAction action : actions) {
+            cost = Math.max(cost, action.getCost());
+        }
+        return cost;
+    }
+
     @Override
     public String toString() {
         return "ParallelAction{" +
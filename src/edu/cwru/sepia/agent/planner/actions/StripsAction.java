@@ -37,4 +37,12 @@ public interface StripsAction {
      * @return State resulting from successful action appliction.
      */
     public GameState apply(GameState state);
+
+    /**
+     * Returns the number of turns this action is expected to take. This is added to the cost of the state the action is
+     * applied to, so it must be known before apply is called.
+     *
+     * @return The duration of the action in turns
+     */
+    public double getCost();
 }